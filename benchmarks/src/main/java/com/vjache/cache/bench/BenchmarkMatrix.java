@@ -0,0 +1,28 @@
+package com.vjache.cache.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with 1, 4, 16 and 64 threads and the GC profiler. Other arguments are usual JMH options, e.g.
+ * '-p layer=MMFileCache -p distribution=zipf' to narrow parameters.
+ */
+public class BenchmarkMatrix {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions cmd = new CommandLineOptions(args);
+        for (int threads : THREADS) {
+            final OptionsBuilder options = new OptionsBuilder();
+            options.parent(cmd).threads(threads).addProfiler(GCProfiler.class);
+            if (cmd.getIncludes().isEmpty())
+                options.include(CacheBenchmark.class.getSimpleName());
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.vjache.cache.bench;
+
+import com.vjache.cache.Cache;
+import com.vjache.cache.CacheStats;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Mixed read/write workload over a single layer or a chain of layers. A read which misses the whole chain puts the
+ * value back, like a read-through user of the cache would do. Number of threads is given by JMH '-t' option (see
+ * {@link BenchmarkMatrix}), allocation rate by '-prof gc'. Hits and misses of the chain are reported as auxiliary
+ * counters, statistics of the first layer are printed at the end of a trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    @Param({"ConcurrentMemCacheMRU", "ConcurrentMemCacheMFU", "ConcurrentMemCacheWTinyLFU", "MemCacheMRU", "MemCacheMFU", "OffHeapMemCache",
+            "FileCache", "PackFileCache", "MMFileCache", "LogFileCache",
+            "MRU_MMFile", "MFU_WriteBehind_File", "MFU_OffHeap_LogFile"})
+    public String layer;
+
+    @Param({KeySequence.ZIPF, KeySequence.UNIFORM})
+    public String distribution;
+
+    @Param({"64", "1024", "16384"})
+    public int valueSize;
+
+    @Param({"100", "90", "50"})
+    public int readPercent;
+
+    @Param("100000")
+    public int keySpace;
+
+    /** Number of entries of the first layer. */
+    @Param("10000")
+    public int capacity;
+
+    private Cache cache;
+    private Layers layers;
+    private File dir;
+    private String[] keys;
+    private byte[] value;
+    private final AtomicLong seeds = new AtomicLong(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cache-bench").toFile();
+        layers = new Layers(capacity, valueSize, dir);
+        cache = layers.create(layer);
+        keys = new String[keySpace];
+        for (int i = 0; i < keySpace; i++)
+            keys[i] = "key-" + i;
+        value = new byte[valueSize];
+        new Random(7).nextBytes(value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        final CacheStats stats = Layers.stats(cache);
+        if (stats != null)
+            System.out.println("\n" + layer + " first layer: hitRatio=" + stats.hitRatio() + ", " + stats);
+        layers.close();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Workload {
+        KeySequence keys;
+        boolean[] reads;
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheBenchmark bench) {
+            final long seed = bench.seeds.getAndIncrement();
+            keys = KeySequence.create(bench.distribution, bench.keySpace, 1 << 18, seed);
+            reads = new boolean[1 << 12];
+            final Random random = new Random(~seed);
+            for (int i = 0; i < reads.length; i++)
+                reads[i] = random.nextInt(100) < bench.readPercent;
+        }
+
+        boolean nextIsRead() {
+            return reads[cursor++ & (reads.length - 1)];
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Hits {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Benchmark
+    public Object access(Workload workload, Hits counters) {
+        final String key = keys[workload.keys.next()];
+        if (workload.nextIsRead()) {
+            final Object found = cache.get(key);
+            if (found != null) {
+                counters.hits++;
+                return found;
+            }
+            counters.misses++;
+        }
+        cache.put(key, value);
+        return value;
+    }
+}
@@ -0,0 +1,87 @@
+package com.vjache.cache.bench;
+
+import java.util.Random;
+
+/**
+ * Precomputed sequence of key indexes drawn from a uniform or a Zipfian distribution, so a benchmark does not measure
+ * a random generator. The sequence is cycled, its length is a power of two.
+ */
+final class KeySequence {
+
+    static final String UNIFORM = "uniform";
+    static final String ZIPF = "zipf";
+
+    private final int[] indexes;
+    private final int mask;
+    private int cursor = 0;
+
+    private KeySequence(int[] indexes) {
+        this.indexes = indexes;
+        this.mask = indexes.length - 1;
+    }
+
+    int next() {
+        return indexes[cursor++ & mask];
+    }
+
+    /**
+     * @param distribution - {@link #UNIFORM} or {@link #ZIPF}
+     * @param keySpace - number of distinct keys
+     * @param length - sequence length, rounded up to a power of two
+     * @param seed - seed of a random generator
+     */
+    static KeySequence create(String distribution, int keySpace, int length, long seed) {
+        final int[] indexes = new int[Integer.highestOneBit(Math.max(1, length - 1)) << 1];
+        final Random random = new Random(seed);
+        switch (distribution) {
+            case UNIFORM:
+                for (int i = 0; i < indexes.length; i++)
+                    indexes[i] = random.nextInt(keySpace);
+                break;
+            case ZIPF:
+                final Zipf zipf = new Zipf(keySpace, 0.99);
+                for (int i = 0; i < indexes.length; i++)
+                    indexes[i] = zipf.next(random.nextDouble());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        return new KeySequence(indexes);
+    }
+
+    /**
+     * Zipfian generator of "Quickly Generating Billion-Record Synthetic Databases" (Gray et al.), rank 0 is the most
+     * popular key.
+     */
+    private static final class Zipf {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetaN = zeta(n, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        int next(double u) {
+            final double uz = u * zetaN;
+            if (uz < 1)
+                return 0;
+            if (uz < 1 + Math.pow(0.5, theta))
+                return 1;
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++)
+                sum += 1 / Math.pow(i, theta);
+            return sum;
+        }
+    }
+}
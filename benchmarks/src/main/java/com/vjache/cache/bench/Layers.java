@@ -0,0 +1,130 @@
+package com.vjache.cache.bench;
+
+import com.vjache.cache.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a cache layer or a chain of layers by a name used as a benchmark parameter. Memory layers are sized by a
+ * number of entries, off-heap and disk layers get enough bytes for the same number of entries (disk layers for four
+ * times more when they are a second level).
+ */
+final class Layers {
+
+    private final int capacity;
+    private final int valueSize;
+    private final File dir;
+    private final List<Closeable> closeables = new ArrayList<>();
+
+    Layers(int capacity, int valueSize, File dir) {
+        this.capacity = capacity;
+        this.valueSize = valueSize;
+        this.dir = dir;
+    }
+
+    Cache create(String name) throws IOException {
+        switch (name) {
+            case "ConcurrentMemCacheMRU":
+                return new ConcurrentMemCacheMRU(capacity, new DummyCache());
+            case "ConcurrentMemCacheMFU":
+                return new ConcurrentMemCacheMFU(capacity, new DummyCache());
+            case "ConcurrentMemCacheWTinyLFU":
+                return new ConcurrentMemCacheWTinyLFU(capacity, new DummyCache());
+            case "MemCacheMRU":
+                return new Locked(new MemCacheMRU(capacity, new DummyCache()));
+            case "MemCacheMFU":
+                return new Locked(new MemCacheMFU(capacity, 1.2, new DummyCache()));
+            case "OffHeapMemCache":
+                return offHeap(capacity, new DummyCache());
+            case "FileCache":
+                return file(capacity, new DummyCache());
+            case "PackFileCache":
+                return closing(new PackFileCache(new File(dir, "pack"), 16, new DummyCache()));
+            case "MMFileCache":
+                return mmFile(capacity, new DummyCache());
+            case "LogFileCache":
+                return closing(new LogFileCache(new File(dir, "log"), new DummyCache()));
+            case "MRU_MMFile":
+                return new ConcurrentMemCacheMRU(capacity, mmFile(4 * capacity, new DummyCache()));
+            case "MFU_WriteBehind_File":
+                return new ConcurrentMemCacheMFU(capacity,
+                        closing(new WriteBehindCache(file(4 * capacity, new DummyCache()))));
+            case "MFU_OffHeap_LogFile":
+                return new ConcurrentMemCacheMFU(capacity, offHeap(4 * capacity,
+                        closing(new LogFileCache(new File(dir, "log"), new DummyCache()))));
+            default:
+                throw new IllegalArgumentException("Unknown layer: " + name);
+        }
+    }
+
+    /**
+     * Closes created closeable layers, outer ones first.
+     */
+    void close() throws IOException {
+        for (int i = closeables.size() - 1; i >= 0; i--)
+            closeables.get(i).close();
+        closeables.clear();
+    }
+
+    /**
+     * @return - statistics of the first layer of a chain or null if it has none
+     */
+    static CacheStats stats(Cache cache) {
+        if (cache instanceof Locked)
+            cache = ((Locked) cache).cache;
+        return cache instanceof CacheLayer ? ((CacheLayer) cache).metrics().snapshot() : null;
+    }
+
+    private long bytes(int entries) {
+        return (long) entries * (valueSize + 64);
+    }
+
+    private Cache offHeap(int entries, Cache next) {
+        final int pageSize = 64 * 1024;
+        return new OffHeapMemCache(Math.max(bytes(entries), 16L * pageSize), pageSize, 16,
+                new BinarySerializer(), next);
+    }
+
+    private Cache file(int entries, Cache next) {
+        return new FileCache(new File(dir, "file"), 16, bytes(entries), 1, new BinarySerializer(), next);
+    }
+
+    private Cache mmFile(int entries, Cache next) throws IOException {
+        final int buckets = 16;
+        final int bucketSize = (int) Math.max(1024 * 1024, bytes(entries) / buckets);
+        return closing(new MMFileCache(new File(dir, "mm"), buckets, bucketSize, 2 * entries / buckets,
+                new BinarySerializer(), next));
+    }
+
+    private <T extends Closeable> T closing(T cache) {
+        // added after its next level, so it is closed before it
+        closeables.add(cache);
+        return cache;
+    }
+
+    /**
+     * Legacy memory layers are not thread safe, they are measured behind one lock as they would be used by
+     * concurrent callers.
+     */
+    private static final class Locked implements Cache {
+        private final Cache cache;
+
+        Locked(Cache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public synchronized Object get(Object key) {
+            return cache.get(key);
+        }
+
+        @Override
+        public synchronized void put(Object key, Object value) {
+            cache.put(key, value);
+        }
+    }
+}
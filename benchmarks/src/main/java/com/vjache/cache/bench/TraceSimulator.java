@@ -0,0 +1,141 @@
+package com.vjache.cache.bench;
+
+import com.vjache.cache.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Replays key traces against every memory policy and prints their hit ratios. A miss is followed by a put, like a
+ * read-through user of the cache would do. Policies are single segment, so results do not depend on key hashing.
+ *
+ *   java -cp benchmarks.jar com.vjache.cache.bench.TraceSimulator [-format lines|arc] [-capacity 1000,10000] [trace...]
+ *
+ * 'lines' trace has a key as the first token of each line, 'arc' trace (as published with the ARC paper) has lines of
+ * 'start count ...' which request blocks start..start+count-1. Without trace files a synthetic trace is replayed: skewed
+ * (zipf) phases interleaved with scans of cold keys.
+ */
+public class TraceSimulator {
+
+    private static final Map<String, IntFunction<Cache>> POLICIES = new LinkedHashMap<>();
+
+    static {
+        POLICIES.put("MemCacheMRU", capacity -> new MemCacheMRU(capacity, new DummyCache()));
+        POLICIES.put("MemCacheMFU", capacity -> new MemCacheMFU(capacity, 1.2, new DummyCache()));
+        POLICIES.put("ConcurrentMemCacheMRU", capacity -> new ConcurrentMemCacheMRU(capacity, 1, new DummyCache()));
+        POLICIES.put("ConcurrentMemCacheMFU", capacity -> new ConcurrentMemCacheMFU(capacity, 1, new DummyCache()));
+        POLICIES.put("ConcurrentMemCacheWTinyLFU",
+                capacity -> new ConcurrentMemCacheWTinyLFU(capacity, 1, new DummyCache()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        String format = "lines";
+        int[] capacities = {1000, 10000};
+        final List<String> traces = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-format":
+                    format = args[++i];
+                    break;
+                case "-capacity":
+                    capacities = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                default:
+                    traces.add(args[i]);
+            }
+        }
+        if (traces.isEmpty()) {
+            report("synthetic", synthetic(100000, 2000000), capacities);
+        } else {
+            for (String trace : traces)
+                report(trace, read(trace, format), capacities);
+        }
+    }
+
+    private static void report(String name, int[] trace, int[] capacities) {
+        System.out.printf("%s: %d requests%n", name, trace.length);
+        System.out.printf("%-28s", "policy \\ capacity");
+        for (int capacity : capacities)
+            System.out.printf("%12d", capacity);
+        System.out.println();
+        for (Map.Entry<String, IntFunction<Cache>> policy : POLICIES.entrySet()) {
+            System.out.printf("%-28s", policy.getKey());
+            for (int capacity : capacities)
+                System.out.printf("%11.2f%%", 100 * hitRatio(policy.getValue().apply(capacity), trace));
+            System.out.println();
+        }
+        System.out.println();
+    }
+
+    static double hitRatio(Cache cache, int[] trace) {
+        final Integer value = 0;
+        long hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, value);
+            }
+        }
+        return trace.length == 0 ? 0 : (double) hits / trace.length;
+    }
+
+    /**
+     * Reads a trace replacing its keys by dense numbers.
+     */
+    static int[] read(String file, String format) throws IOException {
+        final Map<String, Integer> ids = new HashMap<>();
+        int[] trace = new int[1 << 16];
+        int n = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] tokens = line.trim().split("\\s+");
+                if (tokens[0].isEmpty())
+                    continue;
+                switch (format) {
+                    case "lines":
+                        trace = append(trace, n++, ids.computeIfAbsent(tokens[0], k -> ids.size()));
+                        break;
+                    case "arc":
+                        final long start = Long.parseLong(tokens[0]);
+                        final int count = Integer.parseInt(tokens[1]);
+                        for (int i = 0; i < count; i++) {
+                            final String block = Long.toString(start + i);
+                            trace = append(trace, n++, ids.computeIfAbsent(block, k -> ids.size()));
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown format: " + format);
+                }
+            }
+        }
+        return Arrays.copyOf(trace, n);
+    }
+
+    private static int[] append(int[] trace, int n, int key) {
+        if (n == trace.length)
+            trace = Arrays.copyOf(trace, 2 * n);
+        trace[n] = key;
+        return trace;
+    }
+
+    /**
+     * Zipf phases of a hot key space interleaved with scans of never repeated keys.
+     */
+    static int[] synthetic(int keySpace, int length) {
+        final int[] trace = new int[length];
+        final KeySequence zipf = KeySequence.create(KeySequence.ZIPF, keySpace, length, 1);
+        final int phase = length / 10;
+        int scanKey = keySpace;
+        for (int i = 0; i < length; i++) {
+            final boolean scan = (i / phase) % 2 == 1 && (i % phase) < phase / 2;
+            trace[i] = scan ? scanKey++ : zipf.next();
+        }
+        return trace;
+    }
+}
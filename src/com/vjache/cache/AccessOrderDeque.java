@@ -0,0 +1,75 @@
+package com.vjache.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Intrusive deque of {@link LinkedEntry} nodes. Head is the most recently used entry, tail is the least recently used
+ * one. All operations are O(1). Not thread safe, callers must guard it by their own lock.
+ */
+class AccessOrderDeque {
+
+    private final LinkedEntry sentinel = new LinkedEntry(null, null);
+    private int size = 0;
+
+    AccessOrderDeque() {
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void addFirst(LinkedEntry e) {
+        e.prev = sentinel;
+        e.next = sentinel.next;
+        sentinel.next.prev = e;
+        sentinel.next = e;
+        size ++;
+    }
+
+    void moveToFirst(LinkedEntry e) {
+        if (sentinel.next == e)
+            return;
+        unlink(e);
+        addFirst(e);
+    }
+
+    void remove(LinkedEntry e) {
+        unlink(e);
+    }
+
+    /**
+     * Visits entries from the most recently used to the least recently used one.
+     */
+    void forEach(Consumer<LinkedEntry> action) {
+        for (LinkedEntry e = sentinel.next; e != sentinel; e = e.next)
+            action.accept(e);
+    }
+
+    /**
+     * @return - least recently used entry or null if deque is empty.
+     */
+    LinkedEntry peekLast() {
+        return size == 0 ? null : sentinel.prev;
+    }
+
+    LinkedEntry pollLast() {
+        final LinkedEntry e = peekLast();
+        if (e != null)
+            unlink(e);
+        return e;
+    }
+
+    private void unlink(LinkedEntry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+        size --;
+    }
+}
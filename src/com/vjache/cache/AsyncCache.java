@@ -0,0 +1,31 @@
+package com.vjache.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking variant of {@link Cache}. Layers which work in memory complete operations inline, layers which do I/O
+ * or computations run them on an executor, so a caller's thread is never blocked by a slow level. Values found in a
+ * lower level are put into upper layers when the lower level completes, without blocking anyone.
+ *
+ * A next level which is not an AsyncCache is called on a shared background executor (of virtual threads when the
+ * runtime has them).
+ */
+public interface AsyncCache extends Cache {
+
+    /**
+     * @return - future of a value or of null if the key is missing in all levels.
+     */
+    CompletableFuture<Object> getAsync(Object key);
+
+    /**
+     * @return - future which completes when the pair is put into this layer and entries evicted by it are passed to
+     * the next level.
+     */
+    CompletableFuture<Void> putAsync(Object key, Object value);
+
+    /**
+     * Puts a (K,V) pair which expires after a given time-to-live, see {@link #putAsync(Object, Object)}.
+     */
+    CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit);
+}
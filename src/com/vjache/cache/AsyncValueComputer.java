@@ -0,0 +1,107 @@
+package com.vjache.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Variant of {@link ValueComputer} for loaders which do not block themselves (e.g. an async DB or HTTP client), so
+ * {@link #getAsync(Object)} occupies no thread while a value is being computed. Concurrent requests of the same key
+ * are served by a single computation. Blocking 'get' waits for the computation. Like in {@link ValueComputer}, computed
+ * values are counted as hits and keys without a value as misses.
+ */
+public class AsyncValueComputer extends CacheLayer {
+
+    private final Function<Object, ? extends CompletionStage<?>> func;
+    private final Function<Object, CompletableFuture<Object>> timedFunc = this::compute;
+    private final SingleFlight computations = new SingleFlight();
+
+    /**
+     * @param func - starts a computation of a value of a key, the stage completes with null if the key has no value
+     */
+    public AsyncValueComputer(Function<Object, ? extends CompletionStage<?>> func) {
+        super(null);
+        this.func = func;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return SingleFlight.await(getAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Object> getAsync(Object key) {
+        return computations.loadAsync(key, timedFunc);
+    }
+
+    @Override
+    SimpleEntry getEntry(Object key) {
+        return entryOf(key, get(key));
+    }
+
+    @Override
+    CompletableFuture<Object> getEntryAsync(Object key) {
+        return getAsync(key).thenApply(val -> entryOf(key, val));
+    }
+
+    private CompletableFuture<Object> compute(Object key) {
+        final long start = metrics.start();
+        return func.apply(key).toCompletableFuture().handle((val, t) -> {
+            metrics.record(metrics.computationLatency, start);
+            metrics.record(metrics.getLatency, start);
+            if (t != null)
+                throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+            if (val == null)
+                metrics.misses.increment();
+            else
+                metrics.hits.increment();
+            return (Object) val;
+        });
+    }
+
+    /**
+     * Starts computations of all keys at once and waits for them.
+     */
+    @Override
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        final Map<Object, CompletableFuture<Object>> computing = new LinkedHashMap<>();
+        for (Object key : keys)
+            computing.put(key, getAsync(key));
+        final Map<Object, Object> found = new HashMap<>();
+        for (Map.Entry<Object, CompletableFuture<Object>> e : computing.entrySet()) {
+            final Object val = SingleFlight.await(e.getValue());
+            if (val != null)
+                found.put(e.getKey(), val);
+        }
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<?, ?> entries) {}
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        return get(key);
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value) {
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package com.vjache.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor of background cache tasks (refreshes, asynchronous loads). It runs each task in a virtual thread
+ * when the runtime has them (Java 21+), otherwise in a cached pool of daemon threads. Virtual threads are looked up
+ * reflectively, so the code still compiles and runs on older runtimes.
+ */
+final class BackgroundExecutor {
+
+    private static final Executor INSTANCE = create();
+
+    private BackgroundExecutor() {}
+
+    static Executor instance() {
+        return INSTANCE;
+    }
+
+    private static Executor create() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            final AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                final Thread t = new Thread(r, "cache-background-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.vjache.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact serializer with built-in formats for strings, byte arrays and boxed primitives. Each object is written as
+ * a one byte type tag followed by a payload:
+ *  * String -- UTF-8 bytes
+ *  * byte[] -- bytes as is
+ *  * Integer, Long, Short, Byte, Double, Float, Character, Boolean -- big endian fixed size value
+ *  * custom types -- len:Int, bytes produced by a registered {@link Codec}
+ *  * anything else -- java serialization (fallback)
+ *
+ * Custom codecs are looked up by exact class of an object and must be registered before the serializer is used.
+ */
+public class BinarySerializer implements Serializer {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BYTES = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte FLOAT = 8;
+    private static final byte CHAR = 9;
+    private static final byte BOOLEAN = 10;
+    private static final byte JAVA = 11;
+    private static final int MIN_CUSTOM_TAG = 32;
+
+    private static class Registration {
+        final byte tag;
+        final Codec<Object> codec;
+
+        Registration(byte tag, Codec<Object> codec) {
+            this.tag = tag;
+            this.codec = codec;
+        }
+    }
+
+    private final Map<Class<?>, Registration> byClass = new HashMap<>();
+    private final Registration[] byTag = new Registration[128];
+    private final JavaSerializer fallback = JavaSerializer.INSTANCE;
+
+    /**
+     * Registers a codec for a custom type.
+     * @param tag - type tag written to the bytes in a range [32, 127], must not change once data is persisted
+     * @param type - exact class of objects handled by the codec
+     * @param codec - codec
+     * @return - this serializer
+     */
+    @SuppressWarnings("unchecked")
+    public <T> BinarySerializer register(int tag, Class<T> type, Codec<? super T> codec) {
+        if (tag < MIN_CUSTOM_TAG || tag >= byTag.length)
+            throw new IllegalArgumentException("Tag must be in [" + MIN_CUSTOM_TAG + ", " + (byTag.length - 1) + "].");
+        if (byTag[tag] != null)
+            throw new IllegalArgumentException("Tag " + tag + " is already registered.");
+        final Registration r = new Registration((byte) tag, (Codec<Object>) codec);
+        byTag[tag] = r;
+        byClass.put(type, r);
+        return this;
+    }
+
+    @Override
+    public byte[] serialize(Object o) {
+        if (o == null)
+            return new byte[]{NULL};
+        final Class<?> c = o.getClass();
+        if (c == String.class) {
+            final byte[] s = ((String) o).getBytes(StandardCharsets.UTF_8);
+            final byte[] bytes = new byte[s.length + 1];
+            bytes[0] = STRING;
+            System.arraycopy(s, 0, bytes, 1, s.length);
+            return bytes;
+        }
+        if (c == byte[].class) {
+            final byte[] b = (byte[]) o;
+            final byte[] bytes = new byte[b.length + 1];
+            bytes[0] = BYTES;
+            System.arraycopy(b, 0, bytes, 1, b.length);
+            return bytes;
+        }
+        if (c == Integer.class)
+            return ByteBuffer.allocate(5).put(INT).putInt((Integer) o).array();
+        if (c == Long.class)
+            return ByteBuffer.allocate(9).put(LONG).putLong((Long) o).array();
+        if (c == Short.class)
+            return ByteBuffer.allocate(3).put(SHORT).putShort((Short) o).array();
+        if (c == Byte.class)
+            return new byte[]{BYTE, (Byte) o};
+        if (c == Double.class)
+            return ByteBuffer.allocate(9).put(DOUBLE).putDouble((Double) o).array();
+        if (c == Float.class)
+            return ByteBuffer.allocate(5).put(FLOAT).putFloat((Float) o).array();
+        if (c == Character.class)
+            return ByteBuffer.allocate(3).put(CHAR).putChar((Character) o).array();
+        if (c == Boolean.class)
+            return new byte[]{BOOLEAN, (byte) ((Boolean) o ? 1 : 0)};
+
+        final Registration r = byClass.get(c);
+        if (r != null) {
+            final byte[] payload = r.codec.encode(o);
+            return ByteBuffer.allocate(5 + payload.length).put(r.tag).putInt(payload.length).put(payload).array();
+        }
+
+        final byte[] payload = fallback.serialize(o);
+        final byte[] bytes = new byte[payload.length + 1];
+        bytes[0] = JAVA;
+        System.arraycopy(payload, 0, bytes, 1, payload.length);
+        return bytes;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        final int len = bytes.length - 1;
+        switch (bytes[0]) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(bytes, 1, len, StandardCharsets.UTF_8);
+            case BYTES: {
+                final byte[] b = new byte[len];
+                System.arraycopy(bytes, 1, b, 0, len);
+                return b;
+            }
+            case INT:
+                return ByteBuffer.wrap(bytes).getInt(1);
+            case LONG:
+                return ByteBuffer.wrap(bytes).getLong(1);
+            case SHORT:
+                return ByteBuffer.wrap(bytes).getShort(1);
+            case BYTE:
+                return bytes[1];
+            case DOUBLE:
+                return ByteBuffer.wrap(bytes).getDouble(1);
+            case FLOAT:
+                return ByteBuffer.wrap(bytes).getFloat(1);
+            case CHAR:
+                return ByteBuffer.wrap(bytes).getChar(1);
+            case BOOLEAN:
+                return bytes[1] != 0;
+            case JAVA:
+                return fallback.deserialize(bytes, 1, len);
+            default: {
+                final Registration r = bytes[0] >= MIN_CUSTOM_TAG ? byTag[bytes[0]] : null;
+                if (r == null)
+                    throw new IllegalArgumentException("Unknown type tag: " + bytes[0]);
+                return r.codec.decode(bytes, 5, ByteBuffer.wrap(bytes).getInt(1));
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.vjache.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter of key hashes (persistent layers use {@link java.util.Arrays#hashCode(byte[])} of serialized keys, so
+ * hashes are stable between restarts). A negative answer is definite, so a layer may skip its disk I/O for keys which
+ * it has never stored. Keys can not be removed, layers rebuild their filters from stored keys when too many keys were
+ * put into a filter. Not thread safe, callers must guard it by their own lock.
+ */
+final class BloomFilter {
+
+    private final long[] bits;
+    private final int hashes;
+    private final int capacity;
+    private int insertions = 0;
+
+    /**
+     * @param capacity - number of keys for which the false positive probability holds
+     * @param fpp - desired false positive probability
+     */
+    BloomFilter(int capacity, double fpp) {
+        this.capacity = Math.max(1, capacity);
+        final double ln2 = Math.log(2);
+        final long m = Math.max(64, (long) (-this.capacity * Math.log(fpp) / (ln2 * ln2)));
+        this.bits = new long[(int) ((m + 63) >>> 6)];
+        this.hashes = Math.max(1, (int) Math.round((double) m / this.capacity * ln2));
+    }
+
+    private BloomFilter(long[] bits, int hashes, int capacity, int insertions) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.capacity = capacity;
+        this.insertions = insertions;
+    }
+
+    void put(int hash) {
+        final long h = mix(hash);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32) | 1;
+        final long m = (long) bits.length << 6;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    /**
+     * @return - false if a key with this hash has never been put.
+     */
+    boolean mightContain(int hash) {
+        final long h = mix(hash);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32) | 1;
+        final long m = (long) bits.length << 6;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - true if more keys than the capacity were put, i.e. the false positive probability is not held.
+     */
+    boolean isFull() {
+        return insertions > capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    void clear() {
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = 0;
+        insertions = 0;
+    }
+
+    // hashes:Int, capacity:Int, insertions:Int, words:Int, words:Long...
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(capacity);
+        out.writeInt(insertions);
+        out.writeInt(bits.length);
+        for (long word : bits)
+            out.writeLong(word);
+    }
+
+    static BloomFilter readFrom(DataInput in) throws IOException {
+        final int hashes = in.readInt();
+        final int capacity = in.readInt();
+        final int insertions = in.readInt();
+        final int words = in.readInt();
+        if (hashes <= 0 || capacity <= 0 || words <= 0)
+            throw new IOException("Corrupted bloom filter.");
+        final long[] bits = new long[words];
+        for (int i = 0; i < words; i++)
+            bits[i] = in.readLong();
+        return new BloomFilter(bits, hashes, capacity, insertions);
+    }
+
+    private static long mix(int hash) {
+        // murmur3 finalizer, the int hash is spread to two independent halves
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
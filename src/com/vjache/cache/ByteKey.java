@@ -0,0 +1,27 @@
+package com.vjache.cache;
+
+import java.util.Arrays;
+
+/**
+ * Serialized key which may be used as a key of hash maps i.e. byte array with value based equality.
+ */
+final class ByteKey {
+
+    final byte[] bytes;
+    private final int hc;
+
+    ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hc = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ByteKey && hc == ((ByteKey) o).hc && Arrays.equals(bytes, ((ByteKey) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hc;
+    }
+}
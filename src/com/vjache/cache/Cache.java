@@ -1,5 +1,10 @@
 package com.vjache.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by vj on 12.11.16.
  */
@@ -7,4 +12,35 @@ public interface Cache {
 
     Object get(Object key);
     void   put(Object key, Object value);
+
+    /**
+     * Puts a (K,V) pair which expires after a given time-to-live. Caches which do not support expiry keep it until it
+     * is evicted.
+     */
+    default void put(Object key, Object value, long ttl, TimeUnit unit) {
+        put(key, value);
+    }
+
+    /**
+     * Gets values of several keys at once.
+     * @param keys - keys
+     * @return - found (K,V) pairs, missing keys are absent in the map.
+     */
+    default Map<Object, Object> getAll(Collection<?> keys) {
+        final Map<Object, Object> found = new HashMap<>();
+        for (Object key : keys) {
+            final Object val = get(key);
+            if (val != null)
+                found.put(key, val);
+        }
+        return found;
+    }
+
+    /**
+     * Puts several (K,V) pairs at once.
+     */
+    default void putAll(Map<?, ?> entries) {
+        for (Map.Entry<?, ?> e : entries.entrySet())
+            put(e.getKey(), e.getValue());
+    }
 }
@@ -1,15 +1,39 @@
 package com.vjache.cache;
 
 
-import java.util.List;
+import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
 
 /**
  * Abstract cache framework.
+ *
+ * Layers which support expiry return expired entries as misses and attach expiration time to evicted entries (see
+ * {@link SimpleEntry}), such entries are passed to the next level with their remaining time-to-live, or dropped if
+ * they are already expired. Likewise a value loaded by {@link #get(Object)} from a next level which is a layer keeps its
+ * expiration time (see {@link #getEntry_(Object)}), while values loaded by {@link #getAll(Collection)} do not.
+ *
+ * Each layer counts its hits, misses, puts, evictions and spills and records latencies of its own get_/put_ in
+ * {@link CacheMetrics}, see {@link #metrics()}.
+ *
+ * Async operations ({@link AsyncCache}) of layers which work in memory are done inline, blocking layers (see
+ * {@link #isBlocking()}) run them on their executor.
  */
-public abstract class CacheLayer implements Cache {
+public abstract class CacheLayer implements AsyncCache {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
 
     protected Cache nextLevel;
+    protected final CacheMetrics metrics = new CacheMetrics();
+    private final SingleFlight misses = new SingleFlight();
+    private final Function<Object, Object> loader = this::loadFromNextLevel;
+    private final Function<Object, CompletableFuture<Object>> asyncLoader = this::loadFromNextLevelAsync;
+    private volatile Executor asyncExecutor;
 
     protected CacheLayer(Cache nextLevel) {
         this.nextLevel = nextLevel;
@@ -30,25 +54,412 @@ public abstract class CacheLayer implements Cache {
      */
     protected abstract List<Entry<Object, Object>> put_(Object key, Object value);
 
+    /**
+     * Underlying implementation of get of a value with its expiration time. Default implementation calls
+     * {@link #get_(Object)} and returns entries which never expire, layers which support expiry override it.
+     * @return - entry (see {@link SimpleEntry}) or null
+     */
+    protected SimpleEntry getEntry_(Object key) {
+        return entryOf(key, get_(key));
+    }
+
+    /**
+     * Underlying implementation of put (K,V) pair which expires at a given time. Default implementation ignores
+     * expiration time, layers which support expiry override it.
+     * @param expireAt - time in millis when the pair expires
+     * @return - evicted (K,V) pairs.
+     */
+    protected List<Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        return put_(key, value);
+    }
+
+    /**
+     * Underlying implementation of put of a pair just loaded from the next level. Default implementation calls
+     * {@link #put_(Object, Object, long)}, layers which count accesses of keys override it to not count the miss which
+     * loaded the pair twice.
+     * @param expireAt - expiration time of the pair in the next level, 0 -- never
+     * @return - evicted (K,V) pairs. A loaded pair which is not admitted must not be among them, the next level already
+     * has it.
+     */
+    protected List<Entry<Object, Object>> promote_(Object key, Object value, long expireAt) {
+        return expireAt == 0 ? put_(key, value) : put_(key, value, expireAt);
+    }
+
+    /**
+     * Underlying implementation of batch put of pairs just loaded from the next level, they are loaded without their
+     * expiration times. Default implementation calls {@link #putAll_(Map)}, layers which override
+     * {@link #promote_(Object, Object, long)} override it too.
+     * @return - evicted (K,V) pairs.
+     */
+    protected List<Entry<Object, Object>> promoteAll_(Map<?, ?> entries) {
+        return putAll_(entries);
+    }
+
+    /**
+     * Underlying implementation of removal of a key from this layer only. Default implementation does not support it.
+     * @return - true if the key was present.
+     */
+    protected boolean remove_(Object key) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support removal.");
+    }
+
+    /**
+     * Underlying implementation of batch get. Default implementation calls {@link #get_(Object)} for each key,
+     * layers may override it to e.g. take a lock or read a bucket once for a group of keys.
+     * @param keys - keys
+     * @return - found (K,V) pairs.
+     */
+    protected Map<Object, Object> getAll_(Collection<?> keys) {
+        final Map<Object, Object> found = new HashMap<>();
+        for (Object key : keys) {
+            final Object val = get_(key);
+            if (val != null)
+                found.put(key, val);
+        }
+        return found;
+    }
+
+    /**
+     * Underlying implementation of batch put. Default implementation calls {@link #put_(Object, Object)} for each
+     * pair.
+     * @param entries - (K,V) pairs
+     * @return - evicted (K,V) pairs.
+     */
+    protected List<Entry<Object, Object>> putAll_(Map<?, ?> entries) {
+        List<Entry<Object, Object>> evicted = null;
+        for (Entry<?, ?> e : entries.entrySet()) {
+            final List<Entry<Object, Object>> ev = put_(e.getKey(), e.getValue());
+            if (ev != null && ev.size() > 0) {
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.addAll(ev);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets a value from this layer or, if it is missing, from the next level and puts it into this layer. Concurrent
+     * misses of the same key wait for a single request to the next level and share its result or exception.
+     */
     public Object get(Object key) {
+        final Object val = getLocal(key);
+        return val != null ? val : valueOf(misses.load(key, loader));
+    }
+
+    /**
+     * Gets a value with its expiration time like {@link #get(Object)} does, so a layer above which loads the value
+     * keeps its expiration.
+     * @return - entry (see {@link SimpleEntry}) or null
+     */
+    SimpleEntry getEntry(Object key) {
+        final SimpleEntry e = getEntryLocal(key);
+        return e != null ? e : (SimpleEntry) misses.load(key, loader);
+    }
+
+    /**
+     * Gets a value from this layer only and records it as a hit or a miss.
+     */
+    Object getLocal(Object key) {
+        final long start = metrics.start();
         final Object val = get_(key);
-        if (val == null) {
-            final Object val2 = nextLevel.get(key);
-            if(val2 != null)
-                put(key, val2);
-            return val2;
-        }
+        recordGet(start, val != null);
+        return val;
+    }
+
+    private SimpleEntry getEntryLocal(Object key) {
+        final long start = metrics.start();
+        final SimpleEntry e = getEntry_(key);
+        recordGet(start, e != null);
+        return e;
+    }
+
+    private void recordGet(long start, boolean hit) {
+        metrics.record(metrics.getLatency, start);
+        if (hit)
+            metrics.hits.increment();
         else
-            return val;
+            metrics.misses.increment();
+    }
+
+    public CacheMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Requests a key from the next level, a found value is put into this layer with its expiration time.
+     * @return - entry or null, misses of a key share it.
+     */
+    private Object loadFromNextLevel(Object key) {
+        final SimpleEntry e = nextLevel instanceof CacheLayer
+                ? ((CacheLayer) nextLevel).getEntry(key)
+                : entryOf(key, nextLevel.get(key));
+        if (e != null)
+            spill(promoteLocal(key, e.getValue(), e.expireAt));
+        return e;
+    }
+
+    static SimpleEntry entryOf(Object key, Object val) {
+        return val == null ? null : new SimpleEntry(key, val);
+    }
+
+    private static Object valueOf(Object entry) {
+        return entry == null ? null : ((SimpleEntry) entry).getValue();
     }
 
     public void put(Object key, Object value) {
-        final List<Entry<Object,Object>> evicted = put_(key, value);
-        if(evicted != null && evicted.size() > 0)
-        {
-            for (Entry<Object, Object> e: evicted){
+        spill(putLocal(key, value, 0));
+    }
+
+    @Override
+    public void put(Object key, Object value, long ttl, TimeUnit unit) {
+        spill(putLocal(key, value, expireAt(ttl, unit)));
+    }
+
+    /**
+     * Puts a pair into this layer only.
+     * @param expireAt - time in millis when the pair expires, 0 -- never
+     * @return - evicted pairs.
+     */
+    private List<Entry<Object, Object>> putLocal(Object key, Object value, long expireAt) {
+        final long start = metrics.start();
+        final List<Entry<Object, Object>> evicted = expireAt == 0 ? put_(key, value) : put_(key, value, expireAt);
+        recordPut(start, 1, evicted);
+        return evicted;
+    }
+
+    /**
+     * Puts a pair loaded from the next level into this layer only.
+     * @return - evicted pairs.
+     */
+    private List<Entry<Object, Object>> promoteLocal(Object key, Object value, long expireAt) {
+        final long start = metrics.start();
+        final List<Entry<Object, Object>> evicted = promote_(key, value, expireAt);
+        recordPut(start, 1, evicted);
+        return evicted;
+    }
+
+    private static long expireAt(long ttl, TimeUnit unit) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("TTL must be positive.");
+        return System.currentTimeMillis() + unit.toMillis(ttl);
+    }
+
+    /**
+     * @return - true if get_ and put_ of this layer may block on I/O or a computation. Async operations of such a
+     * layer run on its executor, see {@link #setAsyncExecutor(Executor)}.
+     */
+    protected boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * Sets an executor of async operations of a blocking layer, e.g. a dedicated pool of a disk. By default it is a
+     * shared executor of virtual threads (or daemon threads before Java 21).
+     */
+    public void setAsyncExecutor(Executor executor) {
+        this.asyncExecutor = executor;
+    }
+
+    Executor asyncExecutor() {
+        final Executor executor = asyncExecutor;
+        return executor != null ? executor : BackgroundExecutor.instance();
+    }
+
+    @Override
+    public CompletableFuture<Object> getAsync(Object key) {
+        if (!isBlocking())
+            return foundOrLoad(key, getLocal(key));
+        return CompletableFuture.supplyAsync(() -> getLocal(key), asyncExecutor())
+                .thenCompose(val -> foundOrLoad(key, val));
+    }
+
+    private CompletableFuture<Object> foundOrLoad(Object key, Object val) {
+        return val != null
+                ? CompletableFuture.completedFuture(val)
+                : misses.loadAsync(key, asyncLoader).thenApply(CacheLayer::valueOf);
+    }
+
+    /**
+     * Async variant of {@link #getEntry(Object)}.
+     * @return - future of an entry or null
+     */
+    CompletableFuture<Object> getEntryAsync(Object key) {
+        if (!isBlocking())
+            return entryOrLoad(key, getEntryLocal(key));
+        return CompletableFuture.supplyAsync(() -> getEntryLocal(key), asyncExecutor())
+                .thenCompose(e -> entryOrLoad(key, e));
+    }
+
+    private CompletableFuture<Object> entryOrLoad(Object key, SimpleEntry e) {
+        return e != null ? CompletableFuture.completedFuture(e) : misses.loadAsync(key, asyncLoader);
+    }
+
+    /**
+     * Requests a key from the next level, a found value is put into this layer with its expiration time before the
+     * result is completed (for a blocking layer the put is only started).
+     * @return - future of an entry or null, misses of a key share it.
+     */
+    private CompletableFuture<Object> loadFromNextLevelAsync(Object key) {
+        final CompletableFuture<Object> found;
+        if (nextLevel instanceof CacheLayer)
+            found = ((CacheLayer) nextLevel).getEntryAsync(key);
+        else if (nextLevel instanceof AsyncCache)
+            found = ((AsyncCache) nextLevel).getAsync(key).thenApply(val -> entryOf(key, val));
+        else
+            found = CompletableFuture.supplyAsync(() -> entryOf(key, nextLevel.get(key)), BackgroundExecutor.instance());
+        return found.thenApply(entry -> {
+            final SimpleEntry e = (SimpleEntry) entry;
+            if (e != null)
+                putAsync(() -> promoteLocal(key, e.getValue(), e.expireAt));
+            return e;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value) {
+        return putAsync(key, value, 0);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit) {
+        return putAsync(key, value, expireAt(ttl, unit));
+    }
+
+    private CompletableFuture<Void> putAsync(Object key, Object value, long expireAt) {
+        return putAsync(() -> putLocal(key, value, expireAt));
+    }
+
+    /**
+     * Runs a local put inline or, for a blocking layer, on its executor and spills evicted pairs.
+     */
+    private CompletableFuture<Void> putAsync(Supplier<List<Entry<Object, Object>>> putLocal) {
+        if (!isBlocking())
+            return spillAsync(putLocal.get());
+        return CompletableFuture.supplyAsync(putLocal, asyncExecutor()).thenCompose(this::spillAsync);
+    }
+
+    private void recordPut(long start, int puts, List<Entry<Object, Object>> evicted) {
+        metrics.record(metrics.putLatency, start);
+        metrics.puts.add(puts);
+        if (evicted != null && evicted.size() > 0)
+            metrics.evictions.add(evicted.size());
+    }
+
+    /**
+     * Passes evicted entries to the next level with their remaining time-to-live, expired ones are dropped.
+     */
+    protected void spill(List<Entry<Object, Object>> evicted) {
+        forEachSpill(evicted, (e, ttl) -> {
+            if (ttl == 0)
                 nextLevel.put(e.getKey(), e.getValue());
+            else
+                nextLevel.put(e.getKey(), e.getValue(), ttl, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Async variant of {@link #spill(List)}, a next level which is not an {@link AsyncCache} is called on a
+     * background thread.
+     */
+    private CompletableFuture<Void> spillAsync(List<Entry<Object, Object>> evicted) {
+        if (evicted == null || evicted.isEmpty())
+            return DONE;
+        if (!(nextLevel instanceof AsyncCache))
+            return CompletableFuture.runAsync(() -> spill(evicted), BackgroundExecutor.instance());
+        final AsyncCache next = (AsyncCache) nextLevel;
+        final List<CompletableFuture<Void>> puts = new ArrayList<>(evicted.size());
+        forEachSpill(evicted, (e, ttl) -> puts.add(ttl == 0
+                ? next.putAsync(e.getKey(), e.getValue())
+                : next.putAsync(e.getKey(), e.getValue(), ttl, TimeUnit.MILLISECONDS)));
+        return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Passes not expired entries with their remaining time-to-live in millis (0 -- no expiration) to a consumer and
+     * counts them as spills.
+     */
+    private void forEachSpill(List<Entry<Object, Object>> evicted, ObjLongConsumer<Entry<Object, Object>> action) {
+        if (evicted == null)
+            return;
+        long now = 0;
+        for (Entry<Object, Object> e : evicted) {
+            final long expireAt = expireAt(e);
+            if (expireAt != 0) {
+                if (now == 0)
+                    now = System.currentTimeMillis();
+                if (expireAt <= now)
+                    continue;
+            }
+            action.accept(e, expireAt == 0 ? 0 : expireAt - now);
+            metrics.spills.increment();
+        }
+    }
+
+    private static long expireAt(Entry<Object, Object> e) {
+        return e instanceof SimpleEntry ? ((SimpleEntry) e).expireAt : 0;
+    }
+
+    /**
+     * Gets what it can from this layer and requests the rest from the next level as one batch. Values found below are
+     * put into this layer.
+     */
+    @Override
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        final Map<Object, Object> found = getAllLocal(keys);
+        if (found.size() < keys.size()) {
+            final Set<Object> missing = new LinkedHashSet<>(keys);
+            missing.removeAll(found.keySet());
+            if (!missing.isEmpty()) {
+                final Map<Object, Object> loaded = nextLevel.getAll(missing);
+                if (!loaded.isEmpty()) {
+                    final long start = metrics.start();
+                    final List<Entry<Object, Object>> evicted = promoteAll_(loaded);
+                    recordPut(start, loaded.size(), evicted);
+                    spillAll(evicted);
+                    found.putAll(loaded);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Gets values from this layer only and records them as hits and misses.
+     */
+    Map<Object, Object> getAllLocal(Collection<?> keys) {
+        final long start = metrics.start();
+        final Map<Object, Object> found = getAll_(keys);
+        metrics.record(metrics.getLatency, start);
+        metrics.hits.add(found.size());
+        metrics.misses.add(keys.size() - found.size());
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<?, ?> entries) {
+        final long start = metrics.start();
+        final List<Entry<Object, Object>> evicted = putAll_(entries);
+        recordPut(start, entries.size(), evicted);
+        spillAll(evicted);
+    }
+
+    private void spillAll(List<Entry<Object, Object>> evicted) {
+        if (evicted != null && evicted.size() > 0) {
+            // entries without expiration go down as one batch, expiring ones keep their TTL
+            final Map<Object, Object> spill = new LinkedHashMap<>();
+            final List<Entry<Object, Object>> expiring = new ArrayList<>();
+            for (Entry<Object, Object> e : evicted) {
+                if (expireAt(e) == 0)
+                    spill.put(e.getKey(), e.getValue());
+                else
+                    expiring.add(e);
+            }
+            if (!spill.isEmpty()) {
+                nextLevel.putAll(spill);
+                metrics.spills.add(spill.size());
             }
+            spill(expiring);
         }
     }
 }
@@ -0,0 +1,180 @@
+package com.vjache.cache;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a cache layer. Counters are {@link LongAdder}s and histograms are striped, so
+ * recording does not contend and does not allocate. A layer records into its own metrics, use {@link #snapshot()}
+ * to read them or {@link #register(String)} to expose them as an MXBean.
+ *
+ * Timing an operation takes two clock reads, which is noticeable on the hit path of memory layers. It may be turned
+ * off by {@link #setLatencyRecording(boolean)}, counters are kept anyway.
+ */
+public final class CacheMetrics implements CacheMetricsMXBean {
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder spills = new LongAdder();
+    final LatencyHistogram getLatency = new LatencyHistogram();
+    final LatencyHistogram putLatency = new LatencyHistogram();
+    final LatencyHistogram serializationLatency = new LatencyHistogram();
+    final LatencyHistogram computationLatency = new LatencyHistogram();
+    private volatile boolean latencyRecording = true;
+
+    public CacheStats snapshot() {
+        return new CacheStats(hits.sum(), misses.sum(), puts.sum(), evictions.sum(), spills.sum(),
+                getLatency.snapshot(), putLatency.snapshot(),
+                serializationLatency.snapshot(), computationLatency.snapshot());
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server as 'com.vjache.cache:type=CacheLayer,name=&lt;name&gt;'.
+     */
+    public ObjectName register(String name) {
+        try {
+            final ObjectName objectName = new ObjectName("com.vjache.cache:type=CacheLayer,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isLatencyRecording() {
+        return latencyRecording;
+    }
+
+    @Override
+    public void setLatencyRecording(boolean latencyRecording) {
+        this.latencyRecording = latencyRecording;
+    }
+
+    /**
+     * @return - start time of an operation or 0 if latencies are not recorded.
+     */
+    long start() {
+        return latencyRecording ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records latency of an operation which started at a time given by {@link #start()}.
+     */
+    void record(LatencyHistogram histogram, long start) {
+        if (start != 0)
+            histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return - serializer which records latencies of the given one.
+     */
+    Serializer timed(Serializer serializer) {
+        return new Serializer() {
+            @Override
+            public byte[] serialize(Object o) {
+                final long start = start();
+                try {
+                    return serializer.serialize(o);
+                } finally {
+                    record(serializationLatency, start);
+                }
+            }
+
+            @Override
+            public Object deserialize(byte[] bytes) {
+                final long start = start();
+                try {
+                    return serializer.deserialize(bytes);
+                } finally {
+                    record(serializationLatency, start);
+                }
+            }
+        };
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long h = hits.sum();
+        final long requests = h + misses.sum();
+        return requests == 0 ? 0 : (double) h / requests;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    @Override
+    public double getGetLatencyMean() {
+        return getLatency.snapshot().mean();
+    }
+
+    @Override
+    public long getGetLatencyP50() {
+        return getLatency.snapshot().percentile(0.5);
+    }
+
+    @Override
+    public long getGetLatencyP99() {
+        return getLatency.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public long getGetLatencyMax() {
+        return getLatency.snapshot().max();
+    }
+
+    @Override
+    public double getPutLatencyMean() {
+        return putLatency.snapshot().mean();
+    }
+
+    @Override
+    public long getPutLatencyP50() {
+        return putLatency.snapshot().percentile(0.5);
+    }
+
+    @Override
+    public long getPutLatencyP99() {
+        return putLatency.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public long getPutLatencyMax() {
+        return putLatency.snapshot().max();
+    }
+
+    @Override
+    public long getSerializationLatencyP99() {
+        return serializationLatency.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public long getComputationLatencyP99() {
+        return computationLatency.snapshot().percentile(0.99);
+    }
+}
@@ -0,0 +1,33 @@
+package com.vjache.cache;
+
+/**
+ * JMX view of {@link CacheMetrics}. Latencies are in nanoseconds.
+ */
+public interface CacheMetricsMXBean {
+
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getPuts();
+    long getEvictions();
+    long getSpills();
+
+    double getGetLatencyMean();
+    long getGetLatencyP50();
+    long getGetLatencyP99();
+    long getGetLatencyMax();
+
+    double getPutLatencyMean();
+    long getPutLatencyP50();
+    long getPutLatencyP99();
+    long getPutLatencyMax();
+
+    long getSerializationLatencyP99();
+    long getComputationLatencyP99();
+
+    /**
+     * @return - false if latencies are not recorded, see {@link CacheMetrics#setLatencyRecording(boolean)}.
+     */
+    boolean isLatencyRecording();
+    void setLatencyRecording(boolean latencyRecording);
+}
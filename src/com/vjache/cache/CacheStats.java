@@ -0,0 +1,91 @@
+package com.vjache.cache;
+
+/**
+ * Point in time snapshot of metrics of a cache layer.
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long puts;
+    private final long evictions;
+    private final long spills;
+    private final LatencyHistogram.Snapshot getLatency;
+    private final LatencyHistogram.Snapshot putLatency;
+    private final LatencyHistogram.Snapshot serializationLatency;
+    private final LatencyHistogram.Snapshot computationLatency;
+
+    CacheStats(long hits, long misses, long puts, long evictions, long spills,
+               LatencyHistogram.Snapshot getLatency, LatencyHistogram.Snapshot putLatency,
+               LatencyHistogram.Snapshot serializationLatency, LatencyHistogram.Snapshot computationLatency) {
+        this.hits = hits;
+        this.misses = misses;
+        this.puts = puts;
+        this.evictions = evictions;
+        this.spills = spills;
+        this.getLatency = getLatency;
+        this.putLatency = putLatency;
+        this.serializationLatency = serializationLatency;
+        this.computationLatency = computationLatency;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public double hitRatio() {
+        final long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public long puts() {
+        return puts;
+    }
+
+    /**
+     * @return - number of entries evicted from this layer (including rejected and expired ones).
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return - number of evicted entries passed to the next level.
+     */
+    public long spills() {
+        return spills;
+    }
+
+    /**
+     * @return - latency of lookups in this layer only, without the next levels.
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return getLatency;
+    }
+
+    /**
+     * @return - latency of puts into this layer only, without spilling.
+     */
+    public LatencyHistogram.Snapshot putLatency() {
+        return putLatency;
+    }
+
+    public LatencyHistogram.Snapshot serializationLatency() {
+        return serializationLatency;
+    }
+
+    public LatencyHistogram.Snapshot computationLatency() {
+        return computationLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", puts=" + puts + ", evictions=" + evictions
+                + ", spills=" + spills + ", getP99=" + getLatency.percentile(0.99)
+                + "ns, putP99=" + putLatency.percentile(0.99) + "ns}";
+    }
+}
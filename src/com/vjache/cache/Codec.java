@@ -0,0 +1,17 @@
+package com.vjache.cache;
+
+/**
+ * Custom binary format of a value type which may be plugged into {@link BinarySerializer}.
+ */
+public interface Codec<T> {
+
+    byte[] encode(T value);
+
+    /**
+     * @param bytes - array which contains encoded value
+     * @param offset - offset of encoded value in the array
+     * @param length - length of encoded value
+     * @return - decoded value
+     */
+    T decode(byte[] bytes, int offset, int length);
+}
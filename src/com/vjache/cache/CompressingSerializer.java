@@ -0,0 +1,190 @@
+package com.vjache.cache;
+
+import java.util.*;
+
+/**
+ * Serializer which compresses bytes of another serializer, so persistent layers keep more entries in the same space
+ * and do less I/O per entry. Each record starts with a codec flag:
+ *  * 0 -- bytes of the wrapped serializer as is
+ *  * 1 -- original length:VarInt, LZ block (see {@link LzCompressor})
+ *  * 2 -- original length:VarInt, LZ block which refers to the dictionary
+ *
+ * Records shorter than a threshold and records which do not shrink are stored as is. Small values of similar shape
+ * (e.g. JSON documents of one schema) compress much better with a dictionary trained by
+ * {@link #trainDictionary(Serializer, Collection, int)} from sample values. A dictionary must not change once data
+ * is persisted. Compression is deterministic, so keys may be serialized by it too.
+ *
+ * Note that zero copy reads of {@link MMFileCache} return stored, i.e. compressed, bytes.
+ */
+public class CompressingSerializer implements Serializer {
+
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private static final byte RAW = 0;
+    private static final byte LZ = 1;
+    private static final byte LZ_DICT = 2;
+    private static final int SAMPLE_KMER = 8;
+    private static final int SAMPLE_SEGMENT = 64;
+
+    private final Serializer serializer;
+    private final int threshold;
+    private final LzCompressor plain = new LzCompressor(new byte[0]);
+    private final LzCompressor withDictionary;
+
+    public CompressingSerializer(Serializer serializer) {
+        this(serializer, DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * @param serializer - serializer which bytes are compressed
+     * @param threshold - records shorter than this number of bytes are not compressed
+     * @param dictionary - dictionary of at most 64K bytes or null
+     */
+    public CompressingSerializer(Serializer serializer, int threshold, byte[] dictionary) {
+        this.serializer = serializer;
+        this.threshold = threshold;
+        this.withDictionary = dictionary == null || dictionary.length == 0 ? null : new LzCompressor(dictionary);
+    }
+
+    @Override
+    public byte[] serialize(Object o) {
+        final byte[] bytes = serializer.serialize(o);
+        if (bytes.length >= threshold) {
+            final byte codec = withDictionary != null ? LZ_DICT : LZ;
+            final int header = 1 + varIntSize(bytes.length);
+            final byte[] block = (withDictionary != null ? withDictionary : plain).compress(bytes,
+                    bytes.length - header);
+            if (block != null) {
+                final byte[] record = new byte[header + block.length];
+                record[0] = codec;
+                writeVarInt(bytes.length, record, 1);
+                System.arraycopy(block, 0, record, header, block.length);
+                return record;
+            }
+        }
+        final byte[] record = new byte[bytes.length + 1];
+        record[0] = RAW;
+        System.arraycopy(bytes, 0, record, 1, bytes.length);
+        return record;
+    }
+
+    @Override
+    public Object deserialize(byte[] record) {
+        switch (record[0]) {
+            case RAW:
+                return serializer.deserialize(Arrays.copyOfRange(record, 1, record.length));
+            case LZ:
+            case LZ_DICT: {
+                final LzCompressor compressor = record[0] == LZ ? plain : withDictionary;
+                if (compressor == null)
+                    throw new IllegalStateException("Record is compressed with a dictionary, but none is given.");
+                int length = 0;
+                int pos = 1;
+                for (int shift = 0; ; shift += 7) {
+                    final byte b = record[pos++];
+                    length |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                return serializer.deserialize(compressor.decompress(record, pos, length));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + record[0]);
+        }
+    }
+
+    /**
+     * Builds a dictionary of byte segments which are common among samples. Segments are chosen greedily by a number
+     * of their 8 byte sequences which occur in several samples and were not covered by already chosen segments.
+     * @param serializer - serializer of values, the same which is given to the compressing serializer
+     * @param samples - sample values, a few hundreds of typical values are usually enough
+     * @param size - max size of the dictionary, at most 64K
+     * @return - dictionary
+     */
+    public static byte[] trainDictionary(Serializer serializer, Collection<?> samples, int size) {
+        if (size > LzCompressor.MAX_DICTIONARY)
+            throw new IllegalArgumentException("Dictionary must not exceed " + LzCompressor.MAX_DICTIONARY + " bytes.");
+        final List<byte[]> serialized = new ArrayList<>(samples.size());
+        final Map<Long, Integer> frequencies = new HashMap<>();
+        for (Object sample : samples) {
+            final byte[] bytes = serializer.serialize(sample);
+            serialized.add(bytes);
+            final Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + SAMPLE_KMER <= bytes.length; i++)
+                seen.add(kmer(bytes, i));
+            for (Long k : seen)
+                frequencies.merge(k, 1, Integer::sum);
+        }
+
+        // lazy greedy selection: a segment score only goes down when other segments are chosen
+        final PriorityQueue<long[]> segments = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int s = 0; s < serialized.size(); s++) {
+            final byte[] bytes = serialized.get(s);
+            for (int from = 0; from < bytes.length; from += SAMPLE_SEGMENT / 2) {
+                final int to = Math.min(bytes.length, from + SAMPLE_SEGMENT);
+                segments.add(new long[]{score(bytes, from, to, frequencies), s, from, to});
+            }
+        }
+        final List<long[]> chosen = new ArrayList<>();
+        int total = 0;
+        while (!segments.isEmpty() && total < size) {
+            final long[] top = segments.poll();
+            final byte[] bytes = serialized.get((int) top[1]);
+            final long score = score(bytes, (int) top[2], (int) top[3], frequencies);
+            if (score <= 0)
+                break;
+            if (!segments.isEmpty() && score < segments.peek()[0]) {
+                top[0] = score;
+                segments.add(top);
+                continue;
+            }
+            for (int i = (int) top[2]; i + SAMPLE_KMER <= top[3]; i++)
+                frequencies.remove(kmer(bytes, i));
+            chosen.add(top);
+            total += (int) (top[3] - top[2]);
+        }
+
+        // the most valuable segments go last, closest to compressed data
+        final byte[] dictionary = new byte[Math.min(size, total)];
+        int pos = dictionary.length;
+        for (long[] segment : chosen) {
+            final int length = Math.min(pos, (int) (segment[3] - segment[2]));
+            pos -= length;
+            System.arraycopy(serialized.get((int) segment[1]), (int) segment[2], dictionary, pos, length);
+        }
+        return dictionary;
+    }
+
+    private static long score(byte[] bytes, int from, int to, Map<Long, Integer> frequencies) {
+        long score = 0;
+        for (int i = from; i + SAMPLE_KMER <= to; i++) {
+            final Integer f = frequencies.get(kmer(bytes, i));
+            // a sequence seen in a single sample does not help other values
+            if (f != null && f > 1)
+                score += f;
+        }
+        return score;
+    }
+
+    private static long kmer(byte[] bytes, int i) {
+        long k = 0;
+        for (int j = 0; j < SAMPLE_KMER; j++)
+            k = k << 8 | (bytes[i + j] & 0xFF);
+        return k;
+    }
+
+    private static int varIntSize(int v) {
+        int size = 1;
+        while ((v >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void writeVarInt(int v, byte[] out, int pos) {
+        while ((v & ~0x7F) != 0) {
+            out[pos++] = (byte) (v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        out[pos] = (byte) v;
+    }
+}
@@ -0,0 +1,114 @@
+package com.vjache.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Most Frequently Used strategy -- i.e. evicted least frequently used. Thread safe alternative of {@link MemCacheMFU}
+ * which evicts at most one entry per insert in O(1) instead of periodically sorting the whole cache.
+ *
+ * Popularity of keys (both hits and misses) is estimated by a {@link FrequencySketch} with periodic aging, so no
+ * per entry counters are kept. Entries are ordered by recency and the least recently used one is a victim candidate.
+ * When a segment is full a new key is admitted only if its estimated frequency is greater than the victim's one
+ * (TinyLFU admission), otherwise the new key itself is passed to the next level. Thus a burst of cold keys can not
+ * wash out the hot set.
+ */
+public class ConcurrentMemCacheMFU extends SegmentedMemCache {
+
+    // when entries are weighed by size their number is much less than a max weight
+    private static final int MAX_SKETCH_CAPACITY = 1 << 16;
+
+    private static class MFUSegment extends Segment {
+        private final AccessOrderDeque order = new AccessOrderDeque();
+        private final FrequencySketch sketch;
+
+        MFUSegment(long maxWeight) {
+            super(maxWeight);
+            sketch = new FrequencySketch((int) Math.min(maxWeight, MAX_SKETCH_CAPACITY));
+        }
+
+        @Override
+        void onMiss(Object key) {
+            sketch.increment(key);
+        }
+
+        @Override
+        void onHit(LinkedEntry e) {
+            sketch.increment(e.getKey());
+            order.moveToFirst(e);
+        }
+
+        @Override
+        void onInsert(LinkedEntry e) {
+            order.addFirst(e);
+        }
+
+        @Override
+        void onRemove(LinkedEntry e) {
+            order.remove(e);
+        }
+
+        @Override
+        LinkedEntry victim() {
+            return order.peekLast();
+        }
+
+        @Override
+        void forEachHottest(Consumer<LinkedEntry> action) {
+            order.forEach(action);
+        }
+
+        @Override
+        int frequency(Object key) {
+            return sketch.frequency(key);
+        }
+
+        @Override
+        void restoreFrequency(Object key, int frequency) {
+            for (int i = sketch.frequency(key); i < frequency; i++)
+                sketch.increment(key);
+        }
+
+        @Override
+        boolean admit(Object candidate, LinkedEntry victim) {
+            return sketch.frequency(candidate) > sketch.frequency(victim.getKey());
+        }
+    }
+
+    public ConcurrentMemCacheMFU(int maxCapacity, Cache nextLevel) {
+        this(maxCapacity, defaultConcurrencyLevel(), nextLevel);
+    }
+
+    /**
+     * @param maxCapacity - max number of entries in this cache
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheMFU(int maxCapacity, int concurrencyLevel, Cache nextLevel) {
+        this(maxCapacity, Weigher.SINGLETON, 1, Expiry.NEVER, concurrencyLevel, nextLevel);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheMFU(long maxWeight, Weigher weigher, double maxEntryFraction, int concurrencyLevel,
+                                 Cache nextLevel) {
+        this(maxWeight, weigher, maxEntryFraction, Expiry.NEVER, concurrencyLevel, nextLevel);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param expiry - default expiration of entries
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheMFU(long maxWeight, Weigher weigher, double maxEntryFraction, Expiry expiry,
+                                 int concurrencyLevel, Cache nextLevel) {
+        super(maxWeight, weigher, maxEntryFraction, expiry, concurrencyLevel, MFUSegment::new, nextLevel);
+    }
+}
@@ -0,0 +1,91 @@
+package com.vjache.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Most Recently Used strategy -- i.e. evicted least recently used. Thread safe alternative of {@link MemCacheMRU}.
+ *
+ * Each segment keeps its entries in an intrusive access order list, so both 'get' and 'put' are O(1). Eviction order
+ * is LRU within a segment and approximately LRU for the whole cache.
+ */
+public class ConcurrentMemCacheMRU extends SegmentedMemCache {
+
+    private static class MRUSegment extends Segment {
+        private final AccessOrderDeque order = new AccessOrderDeque();
+
+        MRUSegment(long maxWeight) {
+            super(maxWeight);
+        }
+
+        @Override
+        void onMiss(Object key) {}
+
+        @Override
+        void onHit(LinkedEntry e) {
+            order.moveToFirst(e);
+        }
+
+        @Override
+        void onInsert(LinkedEntry e) {
+            order.addFirst(e);
+        }
+
+        @Override
+        void onRemove(LinkedEntry e) {
+            order.remove(e);
+        }
+
+        @Override
+        LinkedEntry victim() {
+            return order.peekLast();
+        }
+
+        @Override
+        void forEachHottest(Consumer<LinkedEntry> action) {
+            order.forEach(action);
+        }
+
+        @Override
+        boolean admit(Object candidate, LinkedEntry victim) {
+            return true;
+        }
+    }
+
+    public ConcurrentMemCacheMRU(int maxSize, Cache next) {
+        this(maxSize, defaultConcurrencyLevel(), next);
+    }
+
+    /**
+     * @param maxSize - max number of entries in this cache
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param next - next cache level which receives evicted entries
+     */
+    public ConcurrentMemCacheMRU(int maxSize, int concurrencyLevel, Cache next) {
+        this(maxSize, Weigher.SINGLETON, 1, Expiry.NEVER, concurrencyLevel, next);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param next - next cache level which receives evicted entries
+     */
+    public ConcurrentMemCacheMRU(long maxWeight, Weigher weigher, double maxEntryFraction, int concurrencyLevel,
+                                 Cache next) {
+        this(maxWeight, weigher, maxEntryFraction, Expiry.NEVER, concurrencyLevel, next);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param expiry - default expiration of entries
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param next - next cache level which receives evicted entries
+     */
+    public ConcurrentMemCacheMRU(long maxWeight, Weigher weigher, double maxEntryFraction, Expiry expiry,
+                                 int concurrencyLevel, Cache next) {
+        super(maxWeight, weigher, maxEntryFraction, expiry, concurrencyLevel, MRUSegment::new, next);
+    }
+}
@@ -0,0 +1,248 @@
+package com.vjache.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Adaptive strategy (W-TinyLFU) which serves both recency and frequency biased workloads. Thread safe, O(1) per
+ * operation.
+ *
+ * Each segment keeps a small admission window (LRU) in front of a main space (segmented LRU of a probation and a
+ * protected queue). New entries go into the window, so a burst of new keys is retained for a while regardless of their
+ * popularity. An entry pushed out of the window competes with the victim of the main space: the one with a lower
+ * frequency estimated by a {@link FrequencySketch} is evicted. An entry hit in the probation queue is promoted to the
+ * protected one (80% of the main space), so a scan can evict only probation entries.
+ *
+ * Share of the window is tuned by hill climbing: after every sample of accesses a segment compares its hit ratio with
+ * the previous sample and keeps moving the window size in the same direction if the ratio improved, or reverses
+ * otherwise. Steps decay while the ratio is stable and are restarted when it changes sharply, e.g. after a shift from
+ * a skewed workload to a scan. Thus scan-heavy traffic gets a large window (like LRU) and skewed traffic a small one
+ * (like LFU).
+ */
+public class ConcurrentMemCacheWTinyLFU extends SegmentedMemCache {
+
+    private static final int MAX_SKETCH_CAPACITY = 1 << 16;
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final double INITIAL_WINDOW = 0.01;
+    private static final double MAX_WINDOW = 0.8;
+    private static final double INITIAL_STEP = 0.0625;
+    private static final double STEP_DECAY = 0.98;
+    private static final double RESTART_THRESHOLD = 0.05;
+
+    private static class WTinyLFUSegment extends Segment {
+        private final AccessOrderDeque window = new AccessOrderDeque();
+        private final AccessOrderDeque probation = new AccessOrderDeque();
+        private final AccessOrderDeque protect = new AccessOrderDeque();
+        private final FrequencySketch sketch;
+        private final int sampleSize;
+        private long windowWeight = 0;
+        private long protectedWeight = 0;
+        private long maxWindowWeight;
+        private long maxProtectedWeight;
+        private double windowShare = INITIAL_WINDOW;
+        // signed, the direction of the next window change
+        private double step = INITIAL_STEP;
+        private double previousHitRatio = 0;
+        private int sampleHits = 0;
+        private int sampleMisses = 0;
+
+        WTinyLFUSegment(long maxWeight) {
+            super(maxWeight);
+            final int capacity = (int) Math.min(maxWeight, MAX_SKETCH_CAPACITY);
+            sketch = new FrequencySketch(capacity);
+            sampleSize = 10 * capacity;
+            resize();
+        }
+
+        @Override
+        void onMiss(Object key) {
+            sketch.increment(key);
+            sampleMisses++;
+            climb();
+        }
+
+        @Override
+        void onHit(LinkedEntry e) {
+            sketch.increment(e.getKey());
+            sampleHits++;
+            switch (e.queue) {
+                case WINDOW:
+                    window.moveToFirst(e);
+                    break;
+                case PROBATION:
+                    probation.remove(e);
+                    e.queue = PROTECTED;
+                    protect.addFirst(e);
+                    protectedWeight += e.weight;
+                    demoteProtected();
+                    break;
+                default:
+                    protect.moveToFirst(e);
+            }
+            climb();
+        }
+
+        @Override
+        void onInsert(LinkedEntry e) {
+            e.queue = WINDOW;
+            window.addFirst(e);
+            windowWeight += e.weight;
+            shrinkWindow();
+        }
+
+        @Override
+        void onRemove(LinkedEntry e) {
+            queueOf(e).remove(e);
+            if (e.queue == WINDOW)
+                windowWeight -= e.weight;
+            else if (e.queue == PROTECTED)
+                protectedWeight -= e.weight;
+        }
+
+        @Override
+        void onReweigh(LinkedEntry e, long newWeight) {
+            if (e.queue == WINDOW)
+                windowWeight += newWeight - e.weight;
+            else if (e.queue == PROTECTED)
+                protectedWeight += newWeight - e.weight;
+        }
+
+        /**
+         * While the window is below its size the main space gives room to it, otherwise the window's LRU entry and
+         * the main space victim compete by frequency.
+         */
+        @Override
+        LinkedEntry victim() {
+            LinkedEntry main = probation.peekLast();
+            if (main == null)
+                main = protect.peekLast();
+            final LinkedEntry candidate = window.peekLast();
+            if (candidate == null)
+                return main;
+            if (main == null)
+                return candidate;
+            if (windowWeight < maxWindowWeight)
+                return main;
+            return sketch.frequency(candidate.getKey()) > sketch.frequency(main.getKey()) ? main : candidate;
+        }
+
+        @Override
+        boolean admit(Object candidate, LinkedEntry victim) {
+            // without a window a new key itself competes with the victim
+            return maxWindowWeight > 0 || sketch.frequency(candidate) > sketch.frequency(victim.getKey());
+        }
+
+        @Override
+        void forEachHottest(Consumer<LinkedEntry> action) {
+            protect.forEach(action);
+            window.forEach(action);
+            probation.forEach(action);
+        }
+
+        @Override
+        int frequency(Object key) {
+            return sketch.frequency(key);
+        }
+
+        @Override
+        void restoreFrequency(Object key, int frequency) {
+            for (int i = sketch.frequency(key); i < frequency; i++)
+                sketch.increment(key);
+        }
+
+        /**
+         * Moves the window size by a step when a sample of accesses is complete.
+         */
+        private void climb() {
+            final int total = sampleHits + sampleMisses;
+            if (total < sampleSize)
+                return;
+            final double hitRatio = (double) sampleHits / total;
+            final double change = hitRatio - previousHitRatio;
+            final double amount = change >= 0 ? step : -step;
+            step = Math.abs(change) >= RESTART_THRESHOLD
+                    ? Math.copySign(INITIAL_STEP, amount)
+                    : STEP_DECAY * amount;
+            windowShare = Math.max(0, Math.min(MAX_WINDOW, windowShare + amount));
+            previousHitRatio = hitRatio;
+            sampleHits = 0;
+            sampleMisses = 0;
+            resize();
+        }
+
+        private void resize() {
+            maxWindowWeight = (long) (maxWeight * windowShare);
+            maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * PROTECTED_SHARE);
+            shrinkWindow();
+            demoteProtected();
+        }
+
+        /**
+         * Moves LRU entries of an oversized window to the probation queue.
+         */
+        private void shrinkWindow() {
+            while (windowWeight > maxWindowWeight && !window.isEmpty()) {
+                final LinkedEntry e = window.pollLast();
+                windowWeight -= e.weight;
+                e.queue = PROBATION;
+                probation.addFirst(e);
+            }
+        }
+
+        /**
+         * Moves LRU entries of an oversized protected queue back to the probation queue.
+         */
+        private void demoteProtected() {
+            while (protectedWeight > maxProtectedWeight && !protect.isEmpty()) {
+                final LinkedEntry e = protect.pollLast();
+                protectedWeight -= e.weight;
+                e.queue = PROBATION;
+                probation.addFirst(e);
+            }
+        }
+
+        private AccessOrderDeque queueOf(LinkedEntry e) {
+            return e.queue == WINDOW ? window : e.queue == PROBATION ? probation : protect;
+        }
+    }
+
+    public ConcurrentMemCacheWTinyLFU(int maxCapacity, Cache nextLevel) {
+        this(maxCapacity, defaultConcurrencyLevel(), nextLevel);
+    }
+
+    /**
+     * @param maxCapacity - max number of entries in this cache
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheWTinyLFU(int maxCapacity, int concurrencyLevel, Cache nextLevel) {
+        this(maxCapacity, Weigher.SINGLETON, 1, Expiry.NEVER, concurrencyLevel, nextLevel);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheWTinyLFU(long maxWeight, Weigher weigher, double maxEntryFraction, int concurrencyLevel,
+                                      Cache nextLevel) {
+        this(maxWeight, weigher, maxEntryFraction, Expiry.NEVER, concurrencyLevel, nextLevel);
+    }
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries, e.g. their size in bytes
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param expiry - default expiration of entries
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param nextLevel - next cache level which receives evicted and rejected entries
+     */
+    public ConcurrentMemCacheWTinyLFU(long maxWeight, Weigher weigher, double maxEntryFraction, Expiry expiry,
+                                      int concurrencyLevel, Cache nextLevel) {
+        super(maxWeight, weigher, maxEntryFraction, expiry, concurrencyLevel, WTinyLFUSegment::new, nextLevel);
+    }
+}
@@ -1,7 +1,9 @@
 package com.vjache.cache;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class DummyCache implements Cache {
+public class DummyCache implements AsyncCache {
 
     public DummyCache() {}
 
@@ -13,4 +15,19 @@ public class DummyCache implements Cache {
     @Override
     public void put(Object key, Object value) {}
 
+    @Override
+    public CompletableFuture<Object> getAsync(Object key) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit) {
+        return CompletableFuture.completedFuture(null);
+    }
+
 }
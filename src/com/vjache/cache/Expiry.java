@@ -0,0 +1,67 @@
+package com.vjache.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default expiration of entries of a cache layer: time-to-live counted from a write and time-to-idle counted from the
+ * last access. Whichever comes first expires an entry. A TTL given explicitly to
+ * {@link Cache#put(Object, Object, long, TimeUnit)} replaces the default TTL of a layer.
+ */
+public final class Expiry {
+
+    public static final Expiry NEVER = new Expiry(0, 0);
+
+    private final long afterWriteMillis;
+    private final long afterAccessMillis;
+
+    private Expiry(long afterWriteMillis, long afterAccessMillis) {
+        this.afterWriteMillis = afterWriteMillis;
+        this.afterAccessMillis = afterAccessMillis;
+    }
+
+    /**
+     * @param afterWrite - time-to-live, 0 means unlimited
+     * @param afterAccess - time-to-idle, 0 means unlimited
+     * @param unit - time unit of both durations
+     */
+    public static Expiry of(long afterWrite, long afterAccess, TimeUnit unit) {
+        if (afterWrite < 0 || afterAccess < 0)
+            throw new IllegalArgumentException("Durations must not be negative.");
+        return new Expiry(unit.toMillis(afterWrite), unit.toMillis(afterAccess));
+    }
+
+    public static Expiry afterWrite(long duration, TimeUnit unit) {
+        return of(duration, 0, unit);
+    }
+
+    public static Expiry afterAccess(long duration, TimeUnit unit) {
+        return of(0, duration, unit);
+    }
+
+    boolean isNever() {
+        return afterWriteMillis == 0 && afterAccessMillis == 0;
+    }
+
+    /**
+     * @return - hard deadline of an entry written at 'now' with a given explicit deadline (0 -- use the default TTL).
+     */
+    long deadline(long now, long explicitDeadline) {
+        if (explicitDeadline != 0)
+            return explicitDeadline;
+        return afterWriteMillis == 0 ? 0 : now + afterWriteMillis;
+    }
+
+    /**
+     * @return - time when an entry accessed at 'now' expires, 0 -- never.
+     */
+    long expireAt(long now, long deadline) {
+        if (afterAccessMillis == 0)
+            return deadline;
+        final long idle = now + afterAccessMillis;
+        return deadline == 0 ? idle : Math.min(deadline, idle);
+    }
+
+    static boolean isExpired(long expireAt, long now) {
+        return expireAt != 0 && expireAt <= now;
+    }
+}
@@ -2,97 +2,517 @@ package com.vjache.cache;
 
 
 import java.io.*;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This is a simple file based cache. Cache store data in a key-value files i.e. one file per key-value pair. Such a
  * files distributed over a set of directories called bucket directories. Name of a bucket directory computed based on
- * a hash of a key.
+ * a hash of a key. A key-value file is key_len:Int, [expire_at:Long], key:Bytes, val:Bytes where key and value are
+ * produced by a {@link Serializer}. A pair put with a time-to-live has a bitwise not of its key length written and is
+ * followed by expiration time in millis, expired pairs are misses and are not passed to the next level.
  *
- * Currently this cache implementation:
- *  * is not restricted by allocating memory on disk
- *  * uses primitive concurrency serialization mechanism
+ * Disk usage may be capped by a max number of bytes which is split evenly between buckets. When files of a bucket
+ * exceed its share the oldest (least recently written) files are removed and their pairs are passed to the next level.
+ * Pairs larger than a given fraction of a bucket share are not stored and passed to the next level straight away.
+ *
+ * Each bucket directory is guarded by its own read/write lock, so lookups run in parallel and writes to different
+ * buckets do not block each other.
+ *
+ * Each bucket has a {@link BloomFilter} of its keys, so a lookup of a key which is not stored does not list and read
+ * the bucket directory. A filter is built on first access to its bucket by reading keys of its files and rebuilt when
+ * too many keys were put into it. Filters are saved on {@link #close()} and loaded on next start.
  */
-public class FileCache extends CacheLayer {
+public class FileCache extends CacheLayer implements Closeable {
+
+    private static final int MIN_FILTER_CAPACITY = 256;
+    private static final double FILTER_FPP = 0.01;
 
     private final File rootDir;
     private final int bucketsNumber;
+    private final Serializer serializer;
+    private final ReadWriteLock[] locks;
+    private final long maxBucketBytes;
+    private final long maxEntryBytes;
+    private final AtomicReferenceArray<BloomFilter> filters;
+    private final File filtersFile;
+
+    public FileCache(File rootDir,
+                     int bucketsNumber,
+                     Cache next) {
+        this(rootDir, bucketsNumber, new BinarySerializer(), next);
+    }
 
     public FileCache(File rootDir,
                      int bucketsNumber,
+                     Serializer serializer,
+                     Cache next) {
+        this(rootDir, bucketsNumber, Long.MAX_VALUE, 1, serializer, next);
+    }
+
+    /**
+     * @param rootDir - directory of bucket directories
+     * @param bucketsNumber - number of bucket directories
+     * @param maxBytes - max total size of key-value files
+     * @param maxEntryFraction - pairs larger than this fraction of a bucket share of max bytes are passed to the next
+     *                         level
+     * @param serializer - serializer of keys and values
+     * @param next - next cache level
+     */
+    public FileCache(File rootDir,
+                     int bucketsNumber,
+                     long maxBytes,
+                     double maxEntryFraction,
+                     Serializer serializer,
                      Cache next) {
         super(next);
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Max bytes must be positive.");
+        if (maxEntryFraction <= 0 || maxEntryFraction > 1)
+            throw new IllegalArgumentException("Max entry fraction must be in (0, 1].");
+        this.maxBucketBytes = maxBytes == Long.MAX_VALUE ? maxBytes : Math.max(1, maxBytes / bucketsNumber);
+        this.maxEntryBytes = (long) (maxBucketBytes * maxEntryFraction);
         this.bucketsNumber = bucketsNumber;
+        this.serializer = metrics.timed(serializer);
+        this.locks = new ReadWriteLock[bucketsNumber];
+        for (int i = 0; i < bucketsNumber; i++)
+            locks[i] = new ReentrantReadWriteLock();
         this.rootDir = new File(rootDir, "_" + bucketsNumber);
         //noinspection ResultOfMethodCallIgnored
         this.rootDir.mkdirs();
+        this.filters = new AtomicReferenceArray<>(bucketsNumber);
+        this.filtersFile = new File(this.rootDir, "_bloom");
+        readFilters();
     }
 
     @Override
-    protected synchronized Object get_(Object key) {
+    protected boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final SimpleEntry e = getEntry_(key);
+        return e == null ? null : e.getValue();
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final ReadWriteLock lock = locks[bucketOf(key)];
+        lock.readLock().lock();
+        try {
+            return read(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private SimpleEntry read(Object key) {
+        final byte[] keyBytes = serializer.serialize(key);
+        if (!filter(bucketOf(key)).mightContain(Arrays.hashCode(keyBytes)))
+            return null;
         File[] files = listBucketFiles(key);
         for (File f : files) {
-            try (FileInputStream fis = new FileInputStream(f)) {
-                final ObjectInputStream stream = new ObjectInputStream(fis);
-                final Object key1 = stream.readObject();
-                if (key1.equals(key)) {
-                    return stream.readObject();
+            try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                final Header header = readHeader(stream);
+                if (Arrays.equals(header.key, keyBytes)) {
+                    if (Expiry.isExpired(header.expireAt, System.currentTimeMillis()))
+                        return null;
+                    return new SimpleEntry(key, serializer.deserialize(readAll(stream)), header.expireAt);
                 }
-            } catch (Exception e) {
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
         return null;
     }
 
+    @Override
+    protected Map<Object, Object> getAll_(Collection<?> keys) {
+        final Map<Object, Object> found = new HashMap<>();
+        for (Map.Entry<Integer, Map<ByteKey, Object>> group : groupByBucket(keys).entrySet()) {
+            final Map<ByteKey, Object> wanted = group.getValue();
+            final ReadWriteLock lock = locks[group.getKey()];
+            lock.readLock().lock();
+            try {
+                final BloomFilter filter = filter(group.getKey());
+                wanted.keySet().removeIf(k -> !filter.mightContain(Arrays.hashCode(k.bytes)));
+                if (wanted.isEmpty())
+                    continue;
+                for (File f : listBucketFiles(group.getKey())) {
+                    if (wanted.isEmpty())
+                        break;
+                    try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                        final Header header = readHeader(stream);
+                        final Object key = wanted.remove(new ByteKey(header.key));
+                        if (key != null && !Expiry.isExpired(header.expireAt, System.currentTimeMillis()))
+                            found.put(key, serializer.deserialize(readAll(stream)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return found;
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> putAll_(Map<?, ?> entries) {
+        final Map<Integer, Map<ByteKey, Object>> groups = groupByBucket(entries.keySet());
+        List<Map.Entry<Object, Object>> evicted = null;
+        for (Map.Entry<Integer, Map<ByteKey, Object>> group : groups.entrySet()) {
+            final ReadWriteLock lock = locks[group.getKey()];
+            lock.writeLock().lock();
+            try {
+                evicted = concat(evicted, writeGroup(group.getKey(), group.getValue(), entries));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return evicted;
+    }
+
+    private List<Map.Entry<Object, Object>> writeGroup(int bucket, Map<ByteKey, Object> toWrite, Map<?, ?> entries)
+            throws IOException {
+        final Map<ByteKey, byte[]> values = new HashMap<>();
+        List<Map.Entry<Object, Object>> evicted = null;
+        for (Map.Entry<ByteKey, Object> e : toWrite.entrySet()) {
+            final Object value = entries.get(e.getValue());
+            final byte[] valBytes = serializer.serialize(value);
+            values.put(e.getKey(), valBytes);
+            if (isOversized(e.getKey().bytes, valBytes))
+                evicted = concat(evicted, Collections.singletonList(new SimpleEntry(e.getValue(), value)));
+        }
+        final File[] files = listBucketFiles(bucket);
+        final List<File> written = new ArrayList<>();
+        for (File f : files) {
+            if (values.isEmpty())
+                break;
+            final ByteKey k;
+            try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                k = new ByteKey(readKey(stream));
+            }
+            final byte[] valBytes = values.remove(k);
+            if (valBytes != null) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+                if (!isOversized(k.bytes, valBytes)) {
+                    writeKeyValueFile(k.bytes, valBytes, 0, f);
+                    written.add(f);
+                }
+            }
+        }
+        int n = files.length;
+        for (Map.Entry<ByteKey, byte[]> e : values.entrySet()) {
+            if (isOversized(e.getKey().bytes, e.getValue()))
+                continue;
+            final File f = newBucketFile(bucket, n++);
+            writeKeyValueFile(e.getKey().bytes, e.getValue(), 0, f);
+            written.add(f);
+            addToFilter(bucket, e.getKey().bytes);
+        }
+        return concat(evicted, evictOldest(bucket, written));
+    }
+
+    /**
+     * @return - serialized keys grouped by a bucket number.
+     */
+    private Map<Integer, Map<ByteKey, Object>> groupByBucket(Collection<?> keys) {
+        final Map<Integer, Map<ByteKey, Object>> groups = new HashMap<>();
+        for (Object key : keys)
+            groups.computeIfAbsent(bucketOf(key), b -> new HashMap<>()).put(new ByteKey(serializer.serialize(key)), key);
+        return groups;
+    }
+
+    private static final class Header {
+        final byte[] key;
+        // 0 -- never expires
+        final long expireAt;
+
+        Header(byte[] key, long expireAt) {
+            this.key = key;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * Reads a key and an expiration time of a pair, the stream is left at the value.
+     */
+    private static Header readHeader(DataInputStream stream) throws IOException {
+        final int keyLen = stream.readInt();
+        final long expireAt = keyLen < 0 ? stream.readLong() : 0;
+        final byte[] keyBytes = new byte[keyLen < 0 ? ~keyLen : keyLen];
+        stream.readFully(keyBytes);
+        return new Header(keyBytes, expireAt);
+    }
+
+    private static byte[] readKey(DataInputStream stream) throws IOException {
+        return readHeader(stream).key;
+    }
+
+    private static boolean readKeyAndCompare(DataInputStream stream, byte[] keyBytes) throws IOException {
+        return Arrays.equals(keyBytes, readKey(stream));
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buff = new byte[4096];
+        int n;
+        while ((n = stream.read(buff)) > 0)
+            baos.write(buff, 0, n);
+        return baos.toByteArray();
+    }
+
     private File[] listBucketFiles(Object key) {
-        final File bucketDir = getBucketDir(key);
+        return listBucketFiles(bucketOf(key));
+    }
+
+    private File[] listBucketFiles(int bucket) {
+        final File bucketDir = getBucketDir(bucket);
         bucketDir.mkdirs();
         return bucketDir.listFiles();
     }
 
     @Override
-    protected synchronized List<Map.Entry<Object, Object>> put_(Object key, Object value) {
-        File[] files = listBucketFiles(key);
-        for (File f : files) {
-            try (FileInputStream fis = new FileInputStream(f)) {
-                final ObjectInputStream stream = new ObjectInputStream(fis);
-                final Object key1 = stream.readObject();
-                if (key1.equals(key)) {
-                    fis.close();
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final ReadWriteLock lock = locks[bucketOf(key)];
+        lock.writeLock().lock();
+        try {
+            return write(key, value, expireAt);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final int bucket = bucketOf(key);
+        final ReadWriteLock lock = locks[bucket];
+        lock.writeLock().lock();
+        try {
+            final byte[] keyBytes = serializer.serialize(key);
+            if (!filter(bucket).mightContain(Arrays.hashCode(keyBytes)))
+                return false;
+            for (File f : listBucketFiles(bucket)) {
+                final boolean found;
+                try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                    found = readKeyAndCompare(stream, keyBytes);
+                }
+                if (found)
+                    return f.delete();
+            }
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<Map.Entry<Object, Object>> write(Object key, Object value, long expireAt) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final byte[] valBytes = serializer.serialize(value);
+        final boolean oversized = isOversized(keyBytes, valBytes);
+        final int bucket = bucketOf(key);
+        File[] files = listBucketFiles(bucket);
+        try {
+            File written = null;
+            for (File f : files) {
+                final boolean found;
+                try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                    found = readKeyAndCompare(stream, keyBytes);
+                }
+                if (found) {
                     //noinspection ResultOfMethodCallIgnored
                     f.delete();
-                    writeKeyValueFile(key, value, f);
-                    return null;
+                    written = f;
+                    break;
                 }
-            } catch (Exception e) {
+            }
+            if (oversized)
+                return Collections.singletonList(new SimpleEntry(key, value, expireAt));
+            final boolean added = written == null;
+            if (added)
+                written = newBucketFile(bucket, files.length);
+            writeKeyValueFile(keyBytes, valBytes, expireAt, written);
+            // the file must exist first, a filter rebuilt by adding the key is built from bucket files
+            if (added)
+                addToFilter(bucket, keyBytes);
+            return evictOldest(bucket, Collections.singletonList(written));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return - filter of a bucket, it is built by reading keys of the bucket files if the bucket was not accessed yet.
+     * Must be called under a lock of the bucket.
+     */
+    private BloomFilter filter(int bucket) {
+        final BloomFilter filter = filters.get(bucket);
+        if (filter != null)
+            return filter;
+        final BloomFilter built = buildFilter(bucket);
+        // concurrent readers may build it at the same time, they get equal filters
+        return filters.compareAndSet(bucket, null, built) ? built : filters.get(bucket);
+    }
+
+    private BloomFilter buildFilter(int bucket) {
+        final File[] files = listBucketFiles(bucket);
+        final BloomFilter filter = new BloomFilter(Math.max(MIN_FILTER_CAPACITY, 2 * files.length), FILTER_FPP);
+        for (File f : files) {
+            try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                filter.put(Arrays.hashCode(readKey(stream)));
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+        return filter;
+    }
 
-        final File bucketDir = getBucketDir(key);
-        final File f = new File(bucketDir, "_"+files.length);
-        try {
-            writeKeyValueFile(key, value, f);
+    /**
+     * Adds a key of a new file to a filter of its bucket, must be called under a write lock of the bucket.
+     */
+    private void addToFilter(int bucket, byte[] keyBytes) {
+        final BloomFilter filter = filter(bucket);
+        filter.put(Arrays.hashCode(keyBytes));
+        if (filter.isFull())
+            filters.set(bucket, buildFilter(bucket));
+    }
+
+    private void readFilters() {
+        if (!filtersFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filtersFile)))) {
+            final int n = in.readInt();
+            for (int i = 0; i < n && i < bucketsNumber; i++) {
+                if (in.readBoolean())
+                    filters.set(i, BloomFilter.readFrom(in));
+            }
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // missing filters are built on access
+            for (int i = 0; i < bucketsNumber; i++)
+                filters.set(i, null);
         }
+        // files may be changed before the next close, until then a crash must not leave stale filters
+        //noinspection ResultOfMethodCallIgnored
+        filtersFile.delete();
+    }
 
-        return null;
+    /**
+     * Saves built filters of buckets, so the next start does not read keys of all files again.
+     */
+    @Override
+    public void close() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filtersFile)))) {
+            out.writeInt(bucketsNumber);
+            for (int i = 0; i < bucketsNumber; i++) {
+                final ReadWriteLock lock = locks[i];
+                lock.readLock().lock();
+                try {
+                    final BloomFilter filter = filters.get(i);
+                    out.writeBoolean(filter != null);
+                    if (filter != null)
+                        filter.writeTo(out);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        }
     }
 
-    private void writeKeyValueFile(Object key, Object value, File f) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(f)) {
-            final ObjectOutputStream stream1 = new ObjectOutputStream(fos);
-            stream1.writeObject(key);
-            stream1.writeObject(value);
-            stream1.flush();
+    private boolean isOversized(byte[] keyBytes, byte[] valBytes) {
+        return 4L + keyBytes.length + valBytes.length > maxEntryBytes;
+    }
+
+    /**
+     * Removes the oldest files of a bucket until it fits into its share of max bytes.
+     * @param keep - just written files which must not be removed
+     * @return - pairs of removed files or null.
+     */
+    private List<Map.Entry<Object, Object>> evictOldest(int bucket, List<File> keep) throws IOException {
+        if (maxBucketBytes == Long.MAX_VALUE)
+            return null;
+        final File[] files = listBucketFiles(bucket);
+        long total = 0;
+        for (File f : files)
+            total += f.length();
+        if (total <= maxBucketBytes)
+            return null;
+        final long[] modified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        final List<Map.Entry<Object, Object>> evicted = new ArrayList<>();
+        for (int i = 0; i < order.length && total > maxBucketBytes; i++) {
+            final File f = files[order[i]];
+            if (keep.contains(f))
+                continue;
+            total -= f.length();
+            try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                final Header header = readHeader(stream);
+                final Object key = serializer.deserialize(header.key);
+                evicted.add(new SimpleEntry(key, serializer.deserialize(readAll(stream)), header.expireAt));
+            }
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+        return evicted;
+    }
+
+    /**
+     * @return - a file with an unused name, names of removed files are reused.
+     */
+    private File newBucketFile(int bucket, int n) {
+        File f;
+        while ((f = new File(getBucketDir(bucket), "_" + n)).exists())
+            n++;
+        return f;
+    }
+
+    private static List<Map.Entry<Object, Object>> concat(List<Map.Entry<Object, Object>> a,
+                                                          List<Map.Entry<Object, Object>> b) {
+        if (a == null || a.isEmpty())
+            return b;
+        if (b == null || b.isEmpty())
+            return a;
+        final List<Map.Entry<Object, Object>> c = new ArrayList<>(a);
+        c.addAll(b);
+        return c;
+    }
+
+    private void writeKeyValueFile(byte[] keyBytes, byte[] valBytes, long expireAt, File f) throws IOException {
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            if (expireAt == 0) {
+                stream.writeInt(keyBytes.length);
+            } else {
+                stream.writeInt(~keyBytes.length);
+                stream.writeLong(expireAt);
+            }
+            stream.write(keyBytes);
+            stream.write(valBytes);
         }
     }
 
-    private File getBucketDir(Object key) {
-        int hc = Math.abs(key.hashCode()) % bucketsNumber;
-        return new File(rootDir, "" + hc);
+    private int bucketOf(Object key) {
+        return Math.floorMod(key.hashCode(), bucketsNumber);
+    }
+
+    private File getBucketDir(int bucket) {
+        return new File(rootDir, "" + bucket);
     }
 }
@@ -0,0 +1,89 @@
+package com.vjache.cache;
+
+/**
+ * Count-Min sketch with 4-bit counters which estimates popularity of keys within a time window. When the number of
+ * recorded events reaches a sample size (10 times of the capacity) all counters are halved, so old popularity ages
+ * out. Each counter occupies 4 bits of a long, i.e. a sketch for N keys takes about 8 * N bytes. Not thread safe,
+ * callers must guard it by their own lock.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int capacity) {
+        final int size = Math.max(8, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(1, capacity);
+    }
+
+    /**
+     * @return - estimated number of occurrences of the key, at most 15.
+     */
+    int frequency(Object key) {
+        final int h = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(h, i);
+            final int offset = counterOffset(h, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the key.
+     */
+    void increment(Object key) {
+        final int h = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(h, i), counterOffset(h, i));
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        final long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ages all counters by halving them.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions >>>= 1;
+    }
+
+    private int indexOf(int h, int i) {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int counterOffset(int h, int i) {
+        // each long holds 16 counters, counter number is taken from 4 bits of the hash (different for each row)
+        return ((h >>> (i << 3)) & 0xf) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
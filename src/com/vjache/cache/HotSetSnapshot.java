@@ -0,0 +1,79 @@
+package com.vjache.cache;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of a hot set of a memory cache: keys (without values) from the hottest to the coldest one, each with an
+ * estimated access frequency. It is written by a memory layer on shutdown and used to warm it up from the next level
+ * after a restart.
+ *
+ * File format: magic:Int, count:Int, then count times key_len:Int, key:Bytes, frequency:Byte
+ */
+class HotSetSnapshot {
+
+    private static final int MAGIC = 0x48534e31;
+
+    final List<byte[]> keys;
+    final List<Integer> frequencies;
+
+    HotSetSnapshot(List<byte[]> keys, List<Integer> frequencies) {
+        this.keys = keys;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Writes the snapshot into a temporary file and atomically moves it to the given one.
+     */
+    void write(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeInt(keys.get(i).length);
+                out.write(keys.get(i));
+                out.writeByte(frequencies.get(i));
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return - snapshot read from the file, empty if the file is absent or damaged.
+     */
+    static HotSetSnapshot read(File file) throws IOException {
+        final HotSetSnapshot empty = new HotSetSnapshot(new ArrayList<>(), new ArrayList<>());
+        if (!file.exists())
+            return empty;
+        final List<byte[]> keys = new ArrayList<>();
+        final List<Integer> frequencies = new ArrayList<>();
+        // counts and lengths are checked against the bytes left, so a damaged file does not cause a huge allocation
+        long left = file.length() - 8;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (left < 0 || in.readInt() != MAGIC)
+                return empty;
+            final int count = in.readInt();
+            if (count < 0 || count > left / 5)
+                return empty;
+            for (int i = 0; i < count; i++) {
+                final int len = in.readInt();
+                left -= 5;
+                if (len < 0 || len > left)
+                    return empty;
+                final byte[] key = new byte[len];
+                in.readFully(key);
+                left -= len;
+                keys.add(key);
+                frequencies.add(in.readUnsignedByte());
+            }
+        } catch (EOFException e) {
+            // the file is written atomically, so a truncated one is damaged
+            return empty;
+        }
+        return new HotSetSnapshot(keys, frequencies);
+    }
+}
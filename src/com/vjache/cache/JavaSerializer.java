@@ -0,0 +1,42 @@
+package com.vjache.cache;
+
+import java.io.*;
+
+/**
+ * Serializer based on standard java serialization. Works for any {@link Serializable} object but is slow and writes a
+ * class descriptor with each object.
+ */
+public class JavaSerializer implements Serializer {
+
+    public static final JavaSerializer INSTANCE = new JavaSerializer();
+
+    @Override
+    public byte[] serialize(Object o) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final ObjectOutputStream stream = new ObjectOutputStream(baos);
+            stream.writeObject(o);
+            stream.flush();
+            return baos.toByteArray();
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        return deserialize(bytes, 0, bytes.length);
+    }
+
+    Object deserialize(byte[] bytes, int offset, int length) {
+        try {
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes, offset, length);
+            final ObjectInputStream stream = new ObjectInputStream(bais);
+            return stream.readObject();
+        }
+        catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
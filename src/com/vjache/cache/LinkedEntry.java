@@ -0,0 +1,29 @@
+package com.vjache.cache;
+
+/**
+ * Cache entry which is also a node of intrusive doubly linked lists. Memory caches use it to keep entries in an
+ * access order and in buckets of a {@link TimerWheel} without allocating separate list nodes.
+ */
+class LinkedEntry extends SimpleEntry {
+
+    private static final long serialVersionUID = 1L;
+
+    LinkedEntry prev;
+    LinkedEntry next;
+    LinkedEntry timerPrev;
+    LinkedEntry timerNext;
+    long weight = 1;
+    // hard expiration time regardless of accesses, 0 -- never
+    long deadline;
+    // the deadline was given explicitly (e.g. by a TTL of a put), it is kept when a value is refreshed
+    boolean explicitDeadline;
+    // time of the last write in millis, used by refresh-ahead
+    long writeTime;
+    boolean refreshing;
+    // queue of an entry in policies with several queues
+    byte queue;
+
+    LinkedEntry(Object k, Object v) {
+        super(k, v);
+    }
+}
@@ -0,0 +1,434 @@
+package com.vjache.cache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Log structured file cache (in a spirit of Bitcask). Records are appended to rolling append-only segment files and an
+ * in-memory index maps each key to a location of its latest record, so a lookup is a single positioned read and a put
+ * is a single append -- nothing is shifted on overwrite.
+ *
+ * Overwritten records become garbage. A background compactor periodically picks sealed segments where the garbage
+ * ratio exceeds a threshold, copies their live records to the active segment and deletes them. When a total size of
+ * segments exceeds max bytes, the oldest sealed segments are dropped and their live pairs are passed to the next level.
+ * On start the index is rebuilt by replaying all segments in order, a segment is cut off at its first record which is
+ * truncated or has a wrong checksum.
+ *
+ * Records may have an expiration time which is kept in the record header (0 -- never expires). Expired records are
+ * misses, also after a restart, and are dropped by compaction.
+ *
+ * Record format: hc:Int, expire_at:long, key_len:Int, val_len:Int, crc:Int, key:Bytes, val:Bytes
+ * where crc is CRC32C of the whole record with zero in place of crc.
+ * A removal appends a tombstone record with val_len -1 and no value. Compaction keeps a tombstone while older segments,
+ * which may hold a removed record, exist.
+ *
+ * Reads are lock free, appends are serialized by a writer lock. Segment files are read through
+ * {@link ReopeningFileChannel}, so an interrupted reader does not close them for other threads.
+ */
+public class LogFileCache extends CacheLayer implements Closeable {
+
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    private static final String SUFFIX = ".log";
+    private static final int TOMBSTONE = -1;
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final ReopeningFileChannel channel;
+        volatile long size;
+        final AtomicLong deadBytes = new AtomicLong();
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new ReopeningFileChannel(file.toPath());
+            this.size = channel.size();
+        }
+
+        double garbageRatio() {
+            return size == 0 ? 0 : (double) deadBytes.get() / size;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int keyLen;
+        final int valLen;
+        final long expireAt;
+
+        Location(Segment segment, long offset, int keyLen, int valLen, long expireAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLen = keyLen;
+            this.valLen = valLen;
+            this.expireAt = expireAt;
+        }
+
+        int recordSize() {
+            return HEADER_SIZE + keyLen + valLen;
+        }
+    }
+
+    private final File rootDir;
+    private final Serializer serializer;
+    private final long maxBytes;
+    private final long maxSegmentSize;
+    private final double garbageThreshold;
+    private final ConcurrentHashMap<ByteKey, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService compactor;
+    private volatile Segment active;
+
+    public LogFileCache(File rootDir, Cache next) throws IOException {
+        this(rootDir, 64 * 1024 * 1024, 0.5, 10, TimeUnit.SECONDS, next);
+    }
+
+    public LogFileCache(File rootDir, long maxBytes, Cache next) throws IOException {
+        this(rootDir, maxBytes, Math.min(64 * 1024 * 1024, maxBytes / 4), 0.5, 10, TimeUnit.SECONDS,
+                new BinarySerializer(), next);
+    }
+
+    public LogFileCache(File rootDir, long maxSegmentSize, double garbageThreshold,
+                        long compactionPeriod, TimeUnit unit, Cache next) throws IOException {
+        this(rootDir, maxSegmentSize, garbageThreshold, compactionPeriod, unit, new BinarySerializer(), next);
+    }
+
+    public LogFileCache(File rootDir, long maxSegmentSize, double garbageThreshold,
+                        long compactionPeriod, TimeUnit unit, Serializer serializer, Cache next) throws IOException {
+        this(rootDir, Long.MAX_VALUE, maxSegmentSize, garbageThreshold, compactionPeriod, unit, serializer, next);
+    }
+
+    /**
+     * @param rootDir - directory of segment files
+     * @param maxBytes - max total size of segment files, the oldest segments are dropped above it
+     * @param maxSegmentSize - active segment is sealed and a new one is started when it grows above this size
+     * @param garbageThreshold - sealed segment is compacted when a share of dead bytes in it exceeds this value
+     * @param compactionPeriod - how often segments are checked for compaction
+     * @param unit - time unit of compaction period
+     * @param serializer - serializer of keys and values
+     * @param next - next cache level
+     */
+    public LogFileCache(File rootDir, long maxBytes, long maxSegmentSize, double garbageThreshold,
+                        long compactionPeriod, TimeUnit unit, Serializer serializer, Cache next) throws IOException {
+        super(next);
+        this.serializer = metrics.timed(serializer);
+        if (maxSegmentSize <= 0 || maxBytes <= maxSegmentSize)
+            throw new IllegalArgumentException("Max segment size must be positive and less than max bytes.");
+        if (garbageThreshold <= 0 || garbageThreshold >= 1)
+            throw new IllegalArgumentException("Garbage threshold must be in (0, 1).");
+        this.rootDir = rootDir;
+        this.maxBytes = maxBytes;
+        this.maxSegmentSize = maxSegmentSize;
+        this.garbageThreshold = garbageThreshold;
+        //noinspection ResultOfMethodCallIgnored
+        rootDir.mkdirs();
+
+        final File[] files = rootDir.listFiles((dir, name) -> name.startsWith("_") && name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                final long id = Long.parseLong(f.getName().substring(1, f.getName().length() - SUFFIX.length()));
+                segments.put(id, new Segment(id, f));
+            }
+        }
+        for (Segment s : segments.values())
+            replay(s);
+        active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "log-file-cache-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, compactionPeriod, compactionPeriod, unit);
+    }
+
+    @Override
+    protected boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final SimpleEntry e = getEntry_(key);
+        return e == null ? null : e.getValue();
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final ByteKey k = new ByteKey(serializer.serialize(key));
+        while (true) {
+            final Location loc = index.get(k);
+            if (loc == null || Expiry.isExpired(loc.expireAt, System.currentTimeMillis()))
+                return null;
+            try {
+                final ByteBuffer buff = ByteBuffer.allocate(loc.valLen);
+                loc.segment.channel.readFully(buff, loc.offset + HEADER_SIZE + loc.keyLen);
+                return new SimpleEntry(key, serializer.deserialize(buff.array()), loc.expireAt);
+            } catch (ClosedChannelException e) {
+                // segment was compacted or dropped after we had taken its location, index points to a new one or to
+                // nothing
+                if (index.get(k) == loc)
+                    throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final byte[] valBytes = serializer.serialize(value);
+        final ByteKey k = new ByteKey(keyBytes);
+        try {
+            synchronized (writeLock) {
+                final Location loc = append(k, valBytes, expireAt);
+                markDead(index.put(k, loc));
+                return dropOldest();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final ByteKey k = new ByteKey(serializer.serialize(key));
+        try {
+            synchronized (writeLock) {
+                final Location old = index.remove(k);
+                if (old == null)
+                    return false;
+                markDead(old);
+                markDead(append(k, null, 0));
+                return true;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops the compactor and closes segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            for (Segment s : segments.values())
+                s.channel.close();
+        }
+    }
+
+    /**
+     * Compacts all sealed segments which have garbage ratio above the threshold. It is called periodically by a
+     * background thread but may also be called explicitly.
+     */
+    public void compact() {
+        for (Segment s : segments.values()) {
+            if (s != active && s.garbageRatio() >= garbageThreshold) {
+                try {
+                    compact(s);
+                } catch (IOException e) {
+                    // leave the segment as is, it will be retried on next run
+                }
+            }
+        }
+    }
+
+    private void compact(Segment s) throws IOException {
+        final long size = s.size;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final long now = System.currentTimeMillis();
+        long pos = 0;
+        while (pos + HEADER_SIZE <= size) {
+            header.clear();
+            s.channel.readFully(header, pos);
+            header.getInt(); // hc
+            final long expireAt = header.getLong();
+            final int keyLen = header.getInt();
+            final int valLen = header.getInt();
+            final int recordSize = HEADER_SIZE + keyLen + Math.max(valLen, 0);
+            final ByteBuffer kv = ByteBuffer.allocate(keyLen + Math.max(valLen, 0));
+            s.channel.readFully(kv, pos + HEADER_SIZE);
+            final ByteKey k = new ByteKey(Arrays.copyOf(kv.array(), keyLen));
+            if (valLen == TOMBSTONE) {
+                synchronized (writeLock) {
+                    // a tombstone is needed while an older segment may hold a removed record of the key
+                    if (!index.containsKey(k) && segments.firstKey() < s.id)
+                        markDead(append(k, null, 0));
+                }
+                pos += recordSize;
+                continue;
+            }
+            final Location loc = index.get(k);
+            if (loc != null && loc.segment == s && loc.offset == pos) {
+                synchronized (writeLock) {
+                    if (Expiry.isExpired(expireAt, now)) {
+                        // like a removal, it must hide older records of the key in older segments
+                        if (index.remove(k, loc) && segments.firstKey() < s.id)
+                            markDead(append(k, null, 0));
+                        pos += recordSize;
+                        continue;
+                    }
+                    final Location moved = append(k, Arrays.copyOfRange(kv.array(), keyLen, keyLen + valLen), expireAt);
+                    if (!index.replace(k, loc, moved))
+                        markDead(moved);
+                }
+            }
+            pos += recordSize;
+        }
+        synchronized (writeLock) {
+            segments.remove(s.id);
+            s.channel.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        s.file.delete();
+    }
+
+    /**
+     * Drops the oldest sealed segments while a total size of segments exceeds max bytes.
+     * @return - live pairs of dropped segments or null
+     */
+    private List<Map.Entry<Object, Object>> dropOldest() throws IOException {
+        List<Map.Entry<Object, Object>> evicted = null;
+        long total = 0;
+        for (Segment s : segments.values())
+            total += s.size;
+        final long now = System.currentTimeMillis();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (total > maxBytes) {
+            final Segment s = segments.firstEntry().getValue();
+            if (s == active)
+                break;
+            long pos = 0;
+            while (pos + HEADER_SIZE <= s.size) {
+                header.clear();
+                s.channel.readFully(header, pos);
+                header.getInt(); // hc
+                final long expireAt = header.getLong();
+                final int keyLen = header.getInt();
+                final int valLen = header.getInt();
+                final ByteBuffer kv = ByteBuffer.allocate(keyLen + Math.max(valLen, 0));
+                s.channel.readFully(kv, pos + HEADER_SIZE);
+                final ByteKey k = new ByteKey(Arrays.copyOf(kv.array(), keyLen));
+                final Location loc = index.get(k);
+                // tombstones of the oldest segment do not hide anything, they are dropped with it
+                if (loc != null && loc.segment == s && loc.offset == pos) {
+                    index.remove(k, loc);
+                    if (!Expiry.isExpired(expireAt, now)) {
+                        if (evicted == null)
+                            evicted = new ArrayList<>();
+                        evicted.add(new SimpleEntry(serializer.deserialize(k.bytes),
+                                serializer.deserialize(Arrays.copyOfRange(kv.array(), keyLen, keyLen + valLen)),
+                                expireAt));
+                    }
+                }
+                pos += HEADER_SIZE + keyLen + Math.max(valLen, 0);
+            }
+            total -= s.size;
+            segments.remove(s.id);
+            s.channel.close();
+            //noinspection ResultOfMethodCallIgnored
+            s.file.delete();
+        }
+        return evicted;
+    }
+
+    /**
+     * @param valBytes - value or null for a tombstone
+     */
+    private Location append(ByteKey k, byte[] valBytes, long expireAt) throws IOException {
+        Segment s = active;
+        if (s.size >= maxSegmentSize)
+            s = active = newSegment(s.id + 1);
+        final int valLen = valBytes == null ? 0 : valBytes.length;
+        final ByteBuffer buff = ByteBuffer.allocate(HEADER_SIZE + k.bytes.length + valLen);
+        buff.putInt(k.hashCode()).putLong(expireAt).putInt(k.bytes.length)
+                .putInt(valBytes == null ? TOMBSTONE : valLen).putInt(0).put(k.bytes);
+        if (valBytes != null)
+            buff.put(valBytes);
+        buff.putInt(HEADER_SIZE - 4, checksum(buff.array()));
+        buff.flip();
+        final long offset = s.size;
+        s.channel.writeFully(buff, offset);
+        s.size = offset + buff.limit();
+        return new Location(s, offset, k.bytes.length, valLen, expireAt);
+    }
+
+    private void markDead(Location loc) {
+        if (loc != null)
+            loc.segment.deadBytes.addAndGet(loc.recordSize());
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        final Segment s = new Segment(id, new File(rootDir, "_" + id + SUFFIX));
+        segments.put(id, s);
+        return s;
+    }
+
+    private void replay(Segment s) throws IOException {
+        final long size = s.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long pos = 0;
+        while (pos + HEADER_SIZE <= size) {
+            header.clear();
+            s.channel.readFully(header, pos);
+            header.getInt(); // hc
+            final long expireAt = header.getLong();
+            final int keyLen = header.getInt();
+            final int valLen = header.getInt();
+            final int crc = header.getInt();
+            final long recordSize = HEADER_SIZE + (long) keyLen + Math.max(valLen, 0);
+            if (keyLen < 0 || valLen < TOMBSTONE || pos + recordSize > size)
+                break;
+            final ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+            s.channel.readFully(record, pos);
+            record.putInt(HEADER_SIZE - 4, 0);
+            // a torn or corrupted record ends the segment, records after it are not trusted
+            if (checksum(record.array()) != crc)
+                break;
+            final ByteKey key = new ByteKey(Arrays.copyOfRange(record.array(), HEADER_SIZE, HEADER_SIZE + keyLen));
+            if (valLen == TOMBSTONE) {
+                markDead(index.remove(key));
+                s.deadBytes.addAndGet(recordSize);
+            } else {
+                markDead(index.put(key, new Location(s, pos, keyLen, valLen, expireAt)));
+            }
+            pos += recordSize;
+        }
+        if (pos < size)
+            s.channel.truncate(pos);
+        s.size = pos;
+    }
+
+    /**
+     * @param record - record with zero in place of its checksum
+     */
+    private static int checksum(byte[] record) {
+        final CRC32C crc = new CRC32C();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,275 @@
+package com.vjache.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Thread safe in-memory cache of values by long keys (e.g. 64 bit ids) which keeps keys in primitive arrays. Per entry
+ * it takes 16 to 32 bytes (depending on a table fill) besides a value itself, it neither boxes keys nor allocates
+ * nodes, so {@link #get(long)} of a present key allocates nothing. Least recently used entries are evicted
+ * (approximated by a CLOCK algorithm).
+ *
+ * Keys are distributed over segments, each segment has its own lock and an open addressing table with linear probing
+ * and backward shift deletion: a long[] of keys, an Object[] of values (null -- empty slot) and a bit set of
+ * referenced slots which a CLOCK hand clears and evicts the first slot which was not accessed since its previous pass.
+ *
+ * Object keyed methods accept only Long keys, so this layer may be put in front of object keyed layers, evicted
+ * entries are passed to the next level with boxed keys. Null values are not stored. Pairs may be put with a
+ * time-to-live, expiration times are kept in a long[] of a segment which is allocated on its first such put, an
+ * expired pair is a miss.
+ */
+public class LongKeyCache extends CacheLayer {
+
+    private static final class Segment {
+        private final int capacity;
+        private final int mask;
+        private final long[] keys;
+        private final Object[] values;
+        private final long[] referenced;
+        // expiration times in millis, 0 -- never, null until a pair with a time-to-live is put
+        private long[] deadlines;
+        private int size = 0;
+        private int hand = 0;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            // load factor is at most 0.75, so probes stay short and a table always has an empty slot
+            final int length = Integer.highestOneBit(capacity + capacity / 3) << 1;
+            this.mask = length - 1;
+            this.keys = new long[length];
+            this.values = new Object[length];
+            this.referenced = new long[(length + 63) >>> 6];
+        }
+
+        synchronized Object get(long key, long hash) {
+            final int i = lookup(key, hash);
+            return i < 0 ? null : values[i];
+        }
+
+        synchronized SimpleEntry getEntry(Object key, long k, long hash) {
+            final int i = lookup(k, hash);
+            return i < 0 ? null : new SimpleEntry(key, values[i], deadlines == null ? 0 : deadlines[i]);
+        }
+
+        /**
+         * @return - slot of a live entry which is marked as referenced or -1.
+         */
+        private int lookup(long key, long hash) {
+            final int i = find(key, hash);
+            if (i < 0)
+                return -1;
+            if (deadlines != null && Expiry.isExpired(deadlines[i], System.currentTimeMillis())) {
+                delete(i);
+                return -1;
+            }
+            referenced[i >>> 6] |= 1L << i;
+            return i;
+        }
+
+        /**
+         * @return - evicted entry or null.
+         */
+        synchronized Entry<Object, Object> put(long key, long hash, Object value, long expireAt) {
+            if (expireAt != 0 && deadlines == null)
+                deadlines = new long[keys.length];
+            int i = (int) hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    if (deadlines != null)
+                        deadlines[i] = expireAt;
+                    referenced[i >>> 6] |= 1L << i;
+                    return null;
+                }
+            }
+            Entry<Object, Object> evicted = null;
+            if (size == capacity) {
+                evicted = evict();
+                // deletion shifts entries back, so a free slot is searched again
+                for (i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) ;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (deadlines != null)
+                deadlines[i] = expireAt;
+            size++;
+            return evicted;
+        }
+
+        synchronized boolean remove(long key, long hash) {
+            final int i = find(key, hash);
+            if (i < 0)
+                return false;
+            delete(i);
+            return true;
+        }
+
+        private int find(long key, long hash) {
+            for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return i;
+            }
+            return -1;
+        }
+
+        private Entry<Object, Object> evict() {
+            while (true) {
+                final int i = hand;
+                if (values[i] != null) {
+                    if ((referenced[i >>> 6] & 1L << i) == 0) {
+                        final Entry<Object, Object> evicted = new SimpleEntry(keys[i], values[i],
+                                deadlines == null ? 0 : deadlines[i]);
+                        // an entry shifted into the slot is checked by the next pass of the hand
+                        delete(i);
+                        return evicted;
+                    }
+                    referenced[i >>> 6] &= ~(1L << i);
+                }
+                hand = (i + 1) & mask;
+            }
+        }
+
+        private void delete(int i) {
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                // an entry may fill the hole if the hole is between its home slot and its current slot
+                final int home = (int) hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    if (deadlines != null)
+                        deadlines[i] = deadlines[j];
+                    if ((referenced[j >>> 6] & 1L << j) != 0)
+                        referenced[i >>> 6] |= 1L << i;
+                    else
+                        referenced[i >>> 6] &= ~(1L << i);
+                    i = j;
+                }
+            }
+            values[i] = null;
+            referenced[i >>> 6] &= ~(1L << i);
+            size--;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public LongKeyCache(int capacity, Cache next) {
+        this(capacity, SegmentedMemCache.defaultConcurrencyLevel(), next);
+    }
+
+    /**
+     * @param capacity - max number of entries
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param next - next cache level
+     */
+    public LongKeyCache(int capacity, int concurrencyLevel, Cache next) {
+        super(next);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        // segments hold at least 64 entries, so a skew of keys over segments does not evict too early
+        int n = Integer.highestOneBit(Math.max(1, Math.min(capacity / 64, 1 << 16)));
+        while (n > 1 && n >= 2 * concurrencyLevel)
+            n >>>= 1;
+        segments = new Segment[n];
+        segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+    }
+
+    /**
+     * Gets a value from this layer or, if it is missing, from the next level (see {@link #get(Object)}).
+     */
+    public Object get(long key) {
+        final long start = metrics.start();
+        final long hash = hash(key);
+        final Object val = segmentFor(hash).get(key, hash);
+        if (val == null)
+            return get((Object) key);
+        metrics.record(metrics.getLatency, start);
+        metrics.hits.increment();
+        return val;
+    }
+
+    /**
+     * Puts a pair into this layer, an evicted pair is passed to the next level.
+     */
+    public void put(long key, Object value) {
+        final long start = metrics.start();
+        final long hash = hash(key);
+        final Segment s = segmentFor(hash);
+        final Entry<Object, Object> evicted;
+        if (value == null) {
+            s.remove(key, hash);
+            evicted = null;
+        } else {
+            evicted = s.put(key, hash, value, 0);
+        }
+        metrics.record(metrics.putLatency, start);
+        metrics.puts.increment();
+        if (evicted != null) {
+            metrics.evictions.increment();
+            spill(Collections.singletonList(evicted));
+        }
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final long k = toLong(key);
+        final long hash = hash(k);
+        return segmentFor(hash).get(k, hash);
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final long k = toLong(key);
+        final long hash = hash(k);
+        return segmentFor(hash).getEntry(key, k, hash);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final long k = toLong(key);
+        final long hash = hash(k);
+        if (value == null) {
+            segmentFor(hash).remove(k, hash);
+            return null;
+        }
+        final Entry<Object, Object> evicted = segmentFor(hash).put(k, hash, value, expireAt);
+        return evicted == null ? null : Collections.singletonList(evicted);
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final long k = toLong(key);
+        final long hash = hash(k);
+        return segmentFor(hash).remove(k, hash);
+    }
+
+    private Segment segmentFor(long hash) {
+        // high bits choose a segment, low bits are used by the segment's table
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    private static long toLong(Object key) {
+        if (!(key instanceof Long))
+            throw new IllegalArgumentException("Key must be a Long: " + key);
+        return (Long) key;
+    }
+
+    private static long hash(long key) {
+        // murmur3 finalizer, ids are often sequential or share low bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,178 @@
+package com.vjache.cache;
+
+/**
+ * Fast LZ77 block compressor of the LZ4 family. A block is a sequence of:
+ *  * token:Byte -- high nibble is a literals length, low nibble is a match length minus 4, 15 means that the length
+ *    continues in following bytes, each adds up to 255 and a byte less than 255 ends it
+ *  * literals
+ *  * offset:Short (little endian) -- distance back to a match, absent after the last literals of a block
+ *
+ * A block does not store its original length, callers keep it. An optional dictionary is treated as data which
+ * precedes a block, so matches may refer to it, the same dictionary must be given to decompress. Stateless and thread
+ * safe.
+ */
+final class LzCompressor {
+
+    static final int MAX_DICTIONARY = 0xFFFF;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private final byte[] dict;
+    // positions of dictionary sequences plus 1, 0 -- empty slot
+    private final int[] dictTable;
+
+    LzCompressor(byte[] dictionary) {
+        if (dictionary.length > MAX_DICTIONARY)
+            throw new IllegalArgumentException("Dictionary must not exceed " + MAX_DICTIONARY + " bytes.");
+        this.dict = dictionary.clone();
+        this.dictTable = new int[1 << HASH_LOG];
+        for (int i = 0; i + MIN_MATCH <= dict.length; i++)
+            dictTable[hash(readInt(dict, i))] = i + 1;
+    }
+
+    /**
+     * @return - compressed block or null if it is not smaller than maxLength
+     */
+    byte[] compress(byte[] src, int maxLength) {
+        if (maxLength <= 0)
+            return null;
+        // positions are counted from the start of the dictionary, so a block starts at dict.length
+        final int base = dict.length;
+        final int end = base + src.length;
+        final int[] table = dictTable.clone();
+        final byte[] out = new byte[maxLength];
+        int op = 0;
+        int anchor = base;
+        int i = base;
+        while (i + MIN_MATCH <= end) {
+            final int seq = readInt(src, i - base);
+            final int h = hash(seq);
+            final int ref = table[h] - 1;
+            table[h] = i + 1;
+            if (ref < 0 || i - ref > MAX_DICTIONARY || readInt(ref, src) != seq) {
+                i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            int len = MIN_MATCH;
+            while (i + len < end && byteAt(ref + len, src) == src[i + len - base])
+                len++;
+            op = writeSequence(src, anchor - base, i - anchor, i - ref, len, out, op);
+            if (op < 0)
+                return null;
+            i += len;
+            anchor = i;
+            if (i - 2 >= base && i + 2 <= end)
+                table[hash(readInt(src, i - 2 - base))] = i - 1;
+        }
+        op = writeSequence(src, anchor - base, end - anchor, 0, 0, out, op);
+        if (op < 0)
+            return null;
+        final byte[] block = new byte[op];
+        System.arraycopy(out, 0, block, 0, op);
+        return block;
+    }
+
+    /**
+     * @param length - original length of the block
+     */
+    byte[] decompress(byte[] src, int offset, int length) {
+        final byte[] dst = new byte[length];
+        int ip = offset;
+        int op = 0;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (op == length)
+                    return dst;
+                final int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int len = (token & 15) + MIN_MATCH;
+                if ((token & 15) == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        len += b;
+                    } while (b == 255);
+                }
+                int from = op - distance;
+                if (distance == 0 || from < -dict.length || op + len > length)
+                    throw new IllegalArgumentException("Corrupted block.");
+                // matches may overlap the output, so bytes are copied one by one
+                for (; from < 0 && len > 0; len--)
+                    dst[op++] = dict[dict.length + from++];
+                for (; len > 0; len--)
+                    dst[op++] = dst[from++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupted block.", e);
+        }
+    }
+
+    private static int writeSequence(byte[] src, int from, int literals, int distance, int matchLength,
+                                     byte[] out, int op) {
+        final int extra = literals / 255 + (matchLength - MIN_MATCH) / 255 + 2;
+        if (op + 1 + literals + extra + 2 > out.length)
+            return -1;
+        final int tokenPos = op++;
+        int token;
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeLength(literals - 15, out, op);
+        } else {
+            token = literals << 4;
+        }
+        System.arraycopy(src, from, out, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            out[op++] = (byte) distance;
+            out[op++] = (byte) (distance >>> 8);
+            final int m = matchLength - MIN_MATCH;
+            if (m >= 15) {
+                token |= 15;
+                op = writeLength(m - 15, out, op);
+            } else {
+                token |= m;
+            }
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] out, int op) {
+        for (; length >= 255; length -= 255)
+            out[op++] = (byte) 255;
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private byte byteAt(int pos, byte[] src) {
+        return pos < dict.length ? dict[pos] : src[pos - dict.length];
+    }
+
+    private int readInt(int pos, byte[] src) {
+        if (pos >= dict.length)
+            return readInt(src, pos - dict.length);
+        return (byteAt(pos, src) & 0xFF) | (byteAt(pos + 1, src) & 0xFF) << 8
+                | (byteAt(pos + 2, src) & 0xFF) << 16 | (byteAt(pos + 3, src) & 0xFF) << 24;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -1,182 +1,973 @@
 package com.vjache.cache;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
 
 /**
  * Memory Mapped File Cache. Whole file subdivided on fixed number of equal sized regions(buckets). Each region
  * memory mapped on to separate byte buffer.
  *
- * Current solution is:
- *  * not very efficient for concurrency
- *  * not fast when rewriting an existing key (more effective compaction algorithms required)
- *  * would be great to make 'put(...)' to have internal queue for each bucket for async write
- *    (to make eviction operation of prev levels faster).
+ * Records are located through a persistent open addressing hash index kept in a separate memory mapped file
+ * ('.idx' next to the data file). Each bucket has its own region of index slots, a slot is hc:Int, pos:Int (record
+ * offset + 1, 0 -- empty, -1 -- deleted), so a lookup touches one or two cache lines of the index plus the record
+ * itself. An overwritten record is only marked as dead, dead records are dropped when a bucket gets full. Index file
+ * header also keeps write cursors of buckets, so a restart after {@link #close()} does not scan the data.
+ *
+ * Each bucket has a {@link BloomFilter} of its keys, so a lookup of a key which is not stored usually does not touch
+ * the index at all. Filters are saved on {@link #close()} and rebuilt from the index after an unclean shutdown.
+ *
+ * Each record has a CRC32C checksum of its header (except the valid flag) and data. Index header has a clean shutdown
+ * flag which is cleared while the cache is open. If the flag is not set on start (e.g. the process was killed) or the
+ * index file is missing or does not match the data file, all buckets are scanned in parallel: each bucket is cut at
+ * its first record which is torn or has a wrong checksum, and its index is rebuilt from the valid records. How much
+ * of the data is on disk at a crash depends on a {@link Durability} mode.
+ *
+ * Records are numbered by a sequence which is kept in the index header on {@link #close()}. A crash may leave several
+ * live records of a key in a bucket, e.g. when a dead mark of an overwritten record has not reached the disk or a
+ * compaction, which moves records in place, is torn. Recovery keeps the record with the greatest sequence number and
+ * marks the others as dead, so an old value is never brought back.
+ *
+ * Each bucket (together with its index region) is guarded by its own {@link StampedLock}. Lookups are at first tried
+ * as lock free optimistic reads which are validated after the value bytes are copied out of the mapping, and fall back
+ * to a read lock if a concurrent write to the same bucket is detected. Readers use only absolute accessors or their
+ * own duplicates of mapped buffers, so they never share buffer position state.
+ *
+ * Large values may be read without copying them to the heap: {@link #lease(Object)} gives a read-only view of a value
+ * in the mapping, {@link #copyTo(Object, ByteBuffer)} and {@link #transferTo(Object, WritableByteChannel)} copy it
+ * straight into a caller's buffer or a channel.
+ *
+ * Records may have an expiration time (see {@link Cache#put(Object, Object, long, java.util.concurrent.TimeUnit)}),
+ * it is kept in the record header, so after a restart expired records are still treated as misses. Expired records
+ * are dropped when their bucket is compacted and never passed to the next level.
+ *
+ * Capacity of the cache is the total size of buckets. When a bucket has no room for a new record even after dead
+ * records are dropped, its oldest records are evicted and passed to the next level. Records larger than a given
+ * fraction of a bucket are not stored and passed to the next level straight away.
+ *
+ * To make eviction operation of prev levels faster wrap it with {@link WriteBehindCache}.
  */
-public class MMFileCache extends CacheLayer {
+public class MMFileCache extends CacheLayer implements Closeable {
+
+    /**
+     * When written records are forced from the page cache to the disk.
+     */
+    public enum Durability {
+        /**
+         * Only by the OS (and on {@link #close()}), a crash of the OS may lose any number of recent writes.
+         */
+        NONE,
+        /**
+         * Periodically by a background thread.
+         */
+        PERIODIC,
+        /**
+         * After every write, the slowest mode.
+         */
+        PER_WRITE
+    }
+
+    // valid:byte, hc:Int, expire_at:long, key_len:Int, val_len:Int, seq:long, crc:Int
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 8 + 4 + 4 + 8 + 4;
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_LIVE = 1;
+    private static final byte RECORD_DEAD = 2;
+
+    // magic:long, buckets:Int, bucket_size:Int, slots:Int, clean:Int, seq:long, then cursor:Int, used:Int for each
+    // bucket
+    private static final long INDEX_MAGIC = 0x4d4d46432d494433L;
+    private static final int CLEAN_OFFSET = 20;
+    private static final int SEQUENCE_OFFSET = 24;
+    private static final int INDEX_HEADER_FIXED_SIZE = 32;
+    private static final int SLOT_SIZE = 8;
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_DELETED = -1;
+
+    // magic:long, buckets:Int, then a filter of each bucket
+    private static final long BLOOM_MAGIC = 0x4d4d46432d424c4dL;
+    private static final int MIN_FILTER_CAPACITY = 256;
+    private static final double FILTER_FPP = 0.01;
 
     private final File file;
     private final MappedByteBuffer[] buckectsRw;
-    private final ByteBuffer[] buckectsRo;
     private final long bufferSize;
+    private final MappedByteBuffer indexHeader;
+    private final MappedByteBuffer[] indexes;
+    private final int slotsPerBucket;
+    private final Serializer serializer;
+    private final StampedLock[] locks;
+    private final BloomFilter[] filters;
+    private final File filtersFile;
+    private final long maxRecordSize;
+    private final Durability durability;
+    private final ScheduledExecutorService flusher;
+    // sequence number of the last written record
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed = false;
 
 
     public MMFileCache(File rootDir, Cache next) throws IOException {
         this(rootDir, 1000, 8 * 1024 * 1024, next);
     }
+
     public MMFileCache(File rootDir, int bucketsNumber, int bucketSize, Cache next) throws IOException {
+        this(rootDir, bucketsNumber, bucketSize, bucketSize / 64, new BinarySerializer(), next);
+    }
+
+    /**
+     * @param rootDir - directory of data and index files
+     * @param bucketsNumber - number of buckets
+     * @param bucketSize - size of a bucket in bytes
+     * @param indexSlotsPerBucket - number of index slots per bucket (rounded up to a power of two), it limits the
+     *                            number of records in a bucket to 3/4 of this value
+     * @param serializer - serializer of keys and values
+     * @param next - next cache level
+     */
+    public MMFileCache(File rootDir, int bucketsNumber, int bucketSize, int indexSlotsPerBucket,
+                       Serializer serializer, Cache next) throws IOException {
+        this(rootDir, bucketsNumber, bucketSize, indexSlotsPerBucket, 1, serializer, next);
+    }
+
+    public MMFileCache(File rootDir, int bucketsNumber, int bucketSize, int indexSlotsPerBucket,
+                       double maxEntryFraction, Serializer serializer, Cache next) throws IOException {
+        this(rootDir, bucketsNumber, bucketSize, indexSlotsPerBucket, maxEntryFraction, serializer,
+                Durability.NONE, 0, TimeUnit.SECONDS, next);
+    }
+
+    /**
+     * @param rootDir - directory of data and index files
+     * @param bucketsNumber - number of buckets
+     * @param bucketSize - size of a bucket in bytes
+     * @param indexSlotsPerBucket - number of index slots per bucket (rounded up to a power of two), it limits the
+     *                            number of records in a bucket to 3/4 of this value
+     * @param maxEntryFraction - records larger than this fraction of a bucket are passed to the next level
+     * @param serializer - serializer of keys and values
+     * @param durability - when written records are forced to the disk
+     * @param flushPeriod - how often records are forced in {@link Durability#PERIODIC} mode
+     * @param unit - time unit of flush period
+     * @param next - next cache level
+     */
+    public MMFileCache(File rootDir, int bucketsNumber, int bucketSize, int indexSlotsPerBucket,
+                       double maxEntryFraction, Serializer serializer, Durability durability,
+                       long flushPeriod, TimeUnit unit, Cache next) throws IOException {
         super(next);
+        this.durability = durability;
+        if (maxEntryFraction <= 0 || maxEntryFraction > 1)
+            throw new IllegalArgumentException("Max entry fraction must be in (0, 1].");
+        this.maxRecordSize = (long) (bucketSize * maxEntryFraction);
+        this.serializer = metrics.timed(serializer);
         buckectsRw = new MappedByteBuffer[bucketsNumber];
-        buckectsRo = new ByteBuffer[buckectsRw.length];
+        locks = new StampedLock[bucketsNumber];
+        filters = new BloomFilter[bucketsNumber];
+        indexes = new MappedByteBuffer[bucketsNumber];
         bufferSize = bucketSize;
+        slotsPerBucket = Math.max(16, Integer.highestOneBit(Math.max(1, indexSlotsPerBucket - 1)) << 1);
         rootDir.mkdirs();
         this.file = new File(rootDir, "_" + buckectsRw.length + "_" + bufferSize);
+        final File indexFile = new File(rootDir, file.getName() + ".idx");
+        this.filtersFile = new File(rootDir, file.getName() + ".bloom");
+        final boolean indexExists = indexFile.exists();
         final FileChannel fc = new RandomAccessFile(file, "rw").getChannel();
+        final FileChannel ic = new RandomAccessFile(indexFile, "rw").getChannel();
 
+        final long indexHeaderSize = pageAligned(INDEX_HEADER_FIXED_SIZE + 8L * bucketsNumber);
+        final long indexRegionSize = (long) slotsPerBucket * SLOT_SIZE;
+        indexHeader = ic.map(FileChannel.MapMode.READ_WRITE, 0, indexHeaderSize);
         for(int i = 0; i < buckectsRw.length; i++) {
             buckectsRw[i] = fc.map(FileChannel.MapMode.READ_WRITE, i * bufferSize, bufferSize);
-            jumpEnd(buckectsRw[i]);
-            buckectsRo[i] = buckectsRw[i].asReadOnlyBuffer();
+            locks[i] = new StampedLock();
+            indexes[i] = ic.map(FileChannel.MapMode.READ_WRITE, indexHeaderSize + i * indexRegionSize, indexRegionSize);
         }
+
+        if (indexExists && indexHeader.getLong(0) == INDEX_MAGIC && indexHeader.getInt(8) == bucketsNumber
+                && indexHeader.getInt(12) == bucketSize && indexHeader.getInt(16) == slotsPerBucket
+                && indexHeader.getInt(CLEAN_OFFSET) == 1) {
+            for (int i = 0; i < buckectsRw.length; i++)
+                buckectsRw[i].position(cursor(i));
+            sequence.set(indexHeader.getLong(SEQUENCE_OFFSET));
+            if (!readFilters())
+                IntStream.range(0, buckectsRw.length).parallel().forEach(this::rebuildFilter);
+        } else {
+            // unclean shutdown or no valid index, recover buckets and rebuild the index by scanning the data
+            indexHeader.putLong(0, 0);
+            IntStream.range(0, buckectsRw.length).parallel().forEach(this::recover);
+            indexHeader.putInt(8, bucketsNumber).putInt(12, bucketSize).putInt(16, slotsPerBucket);
+            indexHeader.putLong(0, INDEX_MAGIC);
+        }
+        // a crash from now on until close must be detected on next start
+        indexHeader.putInt(CLEAN_OFFSET, 0);
+        indexHeader.force();
+
+        if (durability == Durability.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "mm-file-cache-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::force, flushPeriod, flushPeriod, unit);
+        } else {
+            flusher = null;
+        }
+    }
+
+    private static class SerializedKey {
+        final Object key;
+        final byte[] bytes;
+        final int hc;
+
+        SerializedKey(Object key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+            this.hc = Arrays.hashCode(bytes);
+        }
+    }
+
+    @Override
+    protected boolean isBlocking() {
+        return true;
     }
 
     @Override
-    protected synchronized Object get_(Object key) {
-        final byte[] keyBytes = objectToBytes(key);
+    protected Object get_(Object key) {
+        final SimpleEntry e = getEntry_(key);
+        return e == null ? null : e.getValue();
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final byte[] keyBytes = serializer.serialize(key);
         final int hc = Arrays.hashCode(keyBytes);
-        final MappedByteBuffer buff = getByteBufferByKeyRw(hc);
+        final SimpleEntry e = read(bucketOf(hc), hc, keyBytes);
+        return e == null ? null : new SimpleEntry(key, serializer.deserialize((byte[]) e.getValue()), e.expireAt);
+    }
 
-        byte[] valBytes = seek(hc, keyBytes, buff);
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final byte[] valBytes = serializer.serialize(value);
+        final int hc = Arrays.hashCode(keyBytes);
+        final int bucket = bucketOf(hc);
+        final List<Map.Entry<Object, Object>> evicted;
+        final long stamp = locks[bucket].writeLock();
+        try {
+            evicted = write(bucket, hc, keyBytes, valBytes, expireAt);
+        } finally {
+            locks[bucket].unlockWrite(stamp);
+        }
+        return deserialize(evicted);
+    }
 
-        return objectFromBytes(valBytes);
+    @Override
+    protected boolean remove_(Object key) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final int hc = Arrays.hashCode(keyBytes);
+        final int bucket = bucketOf(hc);
+        final long stamp = locks[bucket].writeLock();
+        try {
+            checkOpen();
+            final int slot = findSlot(bucket, hc, keyBytes);
+            if (slot < 0)
+                return false;
+            buckectsRw[bucket].put(indexes[bucket].getInt(slot * SLOT_SIZE + 4) - 1, RECORD_DEAD);
+            indexes[bucket].putInt(slot * SLOT_SIZE + 4, SLOT_DELETED);
+            if (durability == Durability.PER_WRITE)
+                forceBucket(bucket);
+            return true;
+        } finally {
+            locks[bucket].unlockWrite(stamp);
+        }
     }
 
+    @Override
+    protected Map<Object, Object> getAll_(Collection<?> keys) {
+        final Map<Object, Object> found = new HashMap<>();
+        for (Map.Entry<Integer, List<SerializedKey>> group : groupByBucket(keys).entrySet()) {
+            final int bucket = group.getKey();
+            final List<SerializedKey> groupKeys = group.getValue();
+            final SimpleEntry[] values = new SimpleEntry[groupKeys.size()];
+            final long stamp = locks[bucket].readLock();
+            try {
+                for (int i = 0; i < values.length; i++)
+                    values[i] = lookup(bucket, groupKeys.get(i).hc, groupKeys.get(i).bytes);
+            } finally {
+                locks[bucket].unlockRead(stamp);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null)
+                    found.put(groupKeys.get(i).key, serializer.deserialize((byte[]) values[i].getValue()));
+            }
+        }
+        return found;
+    }
 
     @Override
-    protected synchronized List<Map.Entry<Object, Object>> put_(Object key, Object value) {
-        final byte[] keyBytes = objectToBytes(key);
-        final byte[] valBytes = objectToBytes(value);
+    protected List<Map.Entry<Object, Object>> putAll_(Map<?, ?> entries) {
+        List<Map.Entry<Object, Object>> evicted = null;
+        for (Map.Entry<Integer, List<SerializedKey>> group : groupByBucket(entries.keySet()).entrySet()) {
+            final int bucket = group.getKey();
+            final List<byte[]> values = new ArrayList<>(group.getValue().size());
+            for (SerializedKey k : group.getValue())
+                values.add(serializer.serialize(entries.get(k.key)));
+            final long stamp = locks[bucket].writeLock();
+            try {
+                for (int i = 0; i < values.size(); i++) {
+                    final SerializedKey k = group.getValue().get(i);
+                    final List<Map.Entry<Object, Object>> e = write(bucket, k.hc, k.bytes, values.get(i), 0);
+                    if (e != null) {
+                        if (evicted == null)
+                            evicted = new ArrayList<>();
+                        evicted.addAll(e);
+                    }
+                }
+            } finally {
+                locks[bucket].unlockWrite(stamp);
+            }
+        }
+        return deserialize(evicted);
+    }
+
+    /**
+     * Deserializes evicted pairs of key and value bytes.
+     */
+    private List<Map.Entry<Object, Object>> deserialize(List<Map.Entry<Object, Object>> evicted) {
+        if (evicted == null)
+            return null;
+        final List<Map.Entry<Object, Object>> entries = new ArrayList<>(evicted.size());
+        for (Map.Entry<Object, Object> e : evicted) {
+            entries.add(new SimpleEntry(serializer.deserialize((byte[]) e.getKey()),
+                    serializer.deserialize((byte[]) e.getValue()), ((SimpleEntry) e).expireAt));
+        }
+        return entries;
+    }
+
+    /**
+     * @return - serialized keys grouped by a bucket number in order of buckets.
+     */
+    private SortedMap<Integer, List<SerializedKey>> groupByBucket(Collection<?> keys) {
+        final SortedMap<Integer, List<SerializedKey>> groups = new TreeMap<>();
+        for (Object key : keys) {
+            final SerializedKey k = new SerializedKey(key, serializer.serialize(key));
+            groups.computeIfAbsent(bucketOf(k.hc), b -> new ArrayList<>()).add(k);
+        }
+        return groups;
+    }
+
+    /**
+     * Read-only view of a value in the mapping. While a lease is open the bucket of its record is read locked, so
+     * the record is neither moved by compaction nor overwritten, writes to the bucket wait until it is closed. Leases
+     * should be short and must not be held by a thread which writes to this cache.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final StampedLock lock;
+        private final long stamp;
+        private final ByteBuffer value;
+        private boolean closed = false;
+
+        private Lease(StampedLock lock, long stamp, ByteBuffer value) {
+            this.lock = lock;
+            this.stamp = stamp;
+            this.value = value;
+        }
+
+        /**
+         * @return - value bytes as written by the serializer, valid until the lease is closed.
+         */
+        public ByteBuffer value() {
+            if (closed)
+                throw new IllegalStateException("Lease is closed.");
+            return value;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Byte level variant of 'get' which does not copy the value out of the mapping. Like the other byte level methods
+     * it looks up only this layer, a miss is not loaded from the next level. Value bytes are the output of the
+     * serializer (e.g. {@link BinarySerializer} prepends a type tag), so a serializer which keeps byte[] as is makes
+     * them raw blobs.
+     * @return - open lease of the value or null if the key is absent.
+     */
+    public Lease lease(Object key) {
+        final long start = metrics.start();
+        final byte[] keyBytes = serializer.serialize(key);
         final int hc = Arrays.hashCode(keyBytes);
-        final MappedByteBuffer buff = getByteBufferByKeyRw(hc);
+        final int bucket = bucketOf(hc);
+        final long stamp = locks[bucket].readLock();
+        Lease lease = null;
+        try {
+            final int pos = locate(bucket, hc, keyBytes);
+            if (pos >= 0)
+                lease = new Lease(locks[bucket], stamp, value(bucket, pos).slice().asReadOnlyBuffer());
+        } finally {
+            if (lease == null)
+                locks[bucket].unlockRead(stamp);
+        }
+        recordGet(start, lease != null);
+        return lease;
+    }
 
-        seekAndRemove(hc, keyBytes, buff);
+    /**
+     * Copies value bytes of a key straight from the mapping into a buffer.
+     * @return - number of copied bytes or -1 if the key is absent.
+     * @throws java.nio.BufferOverflowException - if the value does not fit into the remaining part of 'dst'
+     */
+    public int copyTo(Object key, ByteBuffer dst) {
+        final long start = metrics.start();
+        final byte[] keyBytes = serializer.serialize(key);
+        final int hc = Arrays.hashCode(keyBytes);
+        final int bucket = bucketOf(hc);
+        final StampedLock lock = locks[bucket];
+        final int mark = dst.position();
+        int len = -2;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                len = copy(bucket, hc, keyBytes, dst);
+            } catch (RuntimeException e) {
+                // a concurrent write was observed in the middle, retry under the lock
+            }
+            if (!lock.validate(stamp))
+                len = -2;
+        }
+        if (len == -2) {
+            dst.position(mark);
+            stamp = lock.readLock();
+            try {
+                len = copy(bucket, hc, keyBytes, dst);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        recordGet(start, len >= 0);
+        return len;
+    }
 
-        // hc:Int, prio:long, key_len:Int, val_len:Int, key:Bytes, val:Bytes
-        buff.put((byte)1).putInt(hc).putLong(0).putInt(keyBytes.length).putInt(valBytes.length).put(keyBytes).put(valBytes);
-//        buff.force();
+    /**
+     * Writes value bytes of a key from the mapping to a channel, e.g. a socket. The bucket of the record is read
+     * locked until the value is written.
+     * @return - false if the key is absent.
+     */
+    public boolean transferTo(Object key, WritableByteChannel target) throws IOException {
+        final Lease lease = lease(key);
+        if (lease == null)
+            return false;
+        try {
+            final ByteBuffer value = lease.value();
+            while (value.hasRemaining())
+                target.write(value);
+            return true;
+        } finally {
+            lease.close();
+        }
+    }
 
-        return null;
+    private int copy(int bucket, int hc, byte[] keyBytes, ByteBuffer dst) {
+        final int pos = locate(bucket, hc, keyBytes);
+        if (pos < 0)
+            return -1;
+        final ByteBuffer value = value(bucket, pos);
+        final int len = value.remaining();
+        if (len > dst.remaining())
+            throw new BufferOverflowException();
+        dst.put(value);
+        return len;
     }
 
-    private void seekAndRemove(int hc, byte[] keyBytes, ByteBuffer buff0) {
-        ByteBuffer buff = buff0.duplicate();
-        buff.position(0);
+    private void recordGet(long start, boolean hit) {
+        metrics.record(metrics.getLatency, start);
+        if (hit)
+            metrics.hits.increment();
+        else
+            metrics.misses.increment();
+    }
 
-        while(buff.hasRemaining())
-        {
-            // hc:Int, prio:long, key_len:Int, val_len:Int, key:Bytes,  val:Bytes
-            byte x = buff.get();
-            if(x == 0) return;
-            int keyHC = buff.getInt();
-            buff.getLong(); // prio
-            int keyLen = buff.getInt();
-            int valLen = buff.getInt();
-            if(keyHC != hc)
-            {
-                buff.position(buff.position() + keyLen + valLen);
-                continue;
+    /**
+     * Reads value bytes of a key, at first optimistically without locking.
+     * @return - entry of the key and value bytes or null.
+     */
+    private SimpleEntry read(int bucket, int hc, byte[] keyBytes) {
+        final StampedLock lock = locks[bucket];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final SimpleEntry e = lookup(bucket, hc, keyBytes);
+                if (lock.validate(stamp))
+                    return e;
+            } catch (RuntimeException e) {
+                // a concurrent write was observed in the middle, retry under the lock
             }
-            byte[] keyBytes1 = new byte[keyLen];
-            buff.get(keyBytes1);
-            buff.position(buff.position() + valLen);
-            if(Arrays.equals(keyBytes, keyBytes1)) {
-                buff0.position(buff0.position() - buff.position());
-                buff.compact();
-                break;
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(bucket, hc, keyBytes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private SimpleEntry lookup(int bucket, int hc, byte[] keyBytes) {
+        final int pos = locate(bucket, hc, keyBytes);
+        if (pos < 0)
+            return null;
+        final ByteBuffer value = value(bucket, pos);
+        final byte[] valBytes = new byte[value.remaining()];
+        value.get(valBytes);
+        return new SimpleEntry(keyBytes, valBytes, buckectsRw[bucket].getLong(pos + 5));
+    }
+
+    /**
+     * @return - position of a live not expired record with the given key or -1.
+     */
+    private int locate(int bucket, int hc, byte[] keyBytes) {
+        final int slot = findSlot(bucket, hc, keyBytes);
+        if (slot < 0)
+            return -1;
+        final int pos = indexes[bucket].getInt(slot * SLOT_SIZE + 4) - 1;
+        if (Expiry.isExpired(buckectsRw[bucket].getLong(pos + 5), System.currentTimeMillis()))
+            return -1;
+        return pos;
+    }
+
+    /**
+     * @return - view of the mapping positioned and limited to the value of a record at 'pos'.
+     */
+    private ByteBuffer value(int bucket, int pos) {
+        final ByteBuffer buff = buckectsRw[bucket];
+        final int keyLen = buff.getInt(pos + 13);
+        final int valLen = buff.getInt(pos + 17);
+        final int valPos = pos + RECORD_HEADER_SIZE + keyLen;
+        if (keyLen < 0 || valLen < 0 || valPos + (long) valLen > bufferSize)
+            throw new IllegalStateException("Corrupted record at " + pos + " of bucket " + bucket);
+        final ByteBuffer dup = buff.duplicate();
+        dup.limit(valPos + valLen).position(valPos);
+        return dup;
+    }
+
+    /**
+     * @return - pairs of key and value bytes of evicted records or null.
+     */
+    private List<Map.Entry<Object, Object>> write(int bucket, int hc, byte[] keyBytes, byte[] valBytes,
+                                                  long expireAt) {
+        checkOpen();
+        final MappedByteBuffer buff = buckectsRw[bucket];
+        final int recordSize = RECORD_HEADER_SIZE + keyBytes.length + valBytes.length;
+
+        int slot = findSlot(bucket, hc, keyBytes);
+        if (slot >= 0) {
+            // mark the previous record of the key as dead, its slot is reused for the new record
+            final int pos = indexes[bucket].getInt(slot * SLOT_SIZE + 4) - 1;
+            buff.put(pos, RECORD_DEAD);
+        }
+        if (recordSize > maxRecordSize) {
+            if (slot >= 0)
+                indexes[bucket].putInt(slot * SLOT_SIZE + 4, SLOT_DELETED);
+            return Collections.singletonList(new SimpleEntry(keyBytes, valBytes, expireAt));
+        }
+        List<Map.Entry<Object, Object>> evicted = null;
+        if (slot < 0 && used(bucket) >= maxUsedSlots() || buff.remaining() < recordSize) {
+            compactBucket(bucket);
+            slot = findSlot(bucket, hc, keyBytes);
+            if (slot < 0 && used(bucket) >= maxUsedSlots() || buff.remaining() < recordSize) {
+                evicted = evictOldest(bucket, recordSize);
+                slot = -1;
             }
-            buff = buff.slice();
         }
+
+        final int pos = buff.position();
+        // hc:Int, expire_at:long, key_len:Int, val_len:Int, seq:long, crc:Int, key:Bytes, val:Bytes
+        buff.put(RECORD_LIVE).putInt(hc).putLong(expireAt).putInt(keyBytes.length).putInt(valBytes.length)
+                .putLong(sequence.incrementAndGet());
+        buff.putInt(checksum(buff, pos, keyBytes, valBytes)).put(keyBytes).put(valBytes);
+        if (slot < 0)
+            insertSlot(bucket, hc, pos);
+        else
+            indexes[bucket].putInt(slot * SLOT_SIZE + 4, pos + 1);
+        setCursor(bucket, buff.position());
+        if (durability == Durability.PER_WRITE)
+            forceBucket(bucket);
+        return evicted;
     }
 
-    private void jumpEnd(ByteBuffer buff) {
-        while(buff.hasRemaining()) {
-            // hc:Int, prio:long, key_len:Int, val_len:Int, key:Bytes,  val:Bytes
-            byte x = buff.get();
-            if (x == 0) {
-                buff.position(buff.position() - 1);
-                return;
+    /**
+     * Evicts records from the beginning (i.e. the oldest ones) of a just compacted bucket until there is a room and a
+     * free index slot for a new record.
+     * @return - pairs of key and value bytes of evicted records.
+     */
+    private List<Map.Entry<Object, Object>> evictOldest(int bucket, int recordSize) {
+        final ByteBuffer buff = buckectsRw[bucket];
+        final List<Map.Entry<Object, Object>> evicted = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        final int end = buff.position();
+        int freed = 0;
+        int removed = 0;
+        int pos = 0;
+        while (pos < end && (buff.remaining() + freed < recordSize || used(bucket) - removed >= maxUsedSlots())) {
+            final long expireAt = buff.getLong(pos + 5);
+            final int keyLen = buff.getInt(pos + 13);
+            final int valLen = buff.getInt(pos + 17);
+            if (!Expiry.isExpired(expireAt, now)) {
+                final byte[] keyBytes = new byte[keyLen];
+                final byte[] valBytes = new byte[valLen];
+                final ByteBuffer dup = buff.duplicate();
+                dup.position(pos + RECORD_HEADER_SIZE);
+                dup.get(keyBytes).get(valBytes);
+                evicted.add(new SimpleEntry(keyBytes, valBytes, expireAt));
             }
-            int keyHC = buff.getInt();
-            buff.getLong(); // prio
-            int keyLen = buff.getInt();
-            int valLen = buff.getInt();
-            buff.position(buff.position() + keyLen + valLen);
+            buff.put(pos, RECORD_DEAD);
+            final int size = RECORD_HEADER_SIZE + keyLen + valLen;
+            freed += size;
+            removed++;
+            pos += size;
         }
+        compactBucket(bucket);
+        return evicted;
     }
 
-    private byte[] seek(int hc, byte[] keyBytes, ByteBuffer buff0) {
-        ByteBuffer buff = buff0.duplicate();
-        buff.position(0);
+    /**
+     * Looks up an index slot of a live record with the given key.
+     * @return - slot number or -1 if key is absent.
+     */
+    private int findSlot(int bucket, int hc, byte[] keyBytes) {
+        if (!filters[bucket].mightContain(hc))
+            return -1;
+        final ByteBuffer index = indexes[bucket];
+        final ByteBuffer buff = buckectsRw[bucket];
+        final int mask = slotsPerBucket - 1;
+        for (int i = mix(hc) & mask, n = 0; n < slotsPerBucket; i = (i + 1) & mask, n++) {
+            final int pos = index.getInt(i * SLOT_SIZE + 4);
+            if (pos == SLOT_EMPTY)
+                return -1;
+            if (pos != SLOT_DELETED && index.getInt(i * SLOT_SIZE) == hc && keyEquals(buff, pos - 1, keyBytes))
+                return i;
+        }
+        return -1;
+    }
+
+    private void insertSlot(int bucket, int hc, int pos) {
+        final ByteBuffer index = indexes[bucket];
+        final int mask = slotsPerBucket - 1;
+        int i = mix(hc) & mask;
+        int slotPos;
+        while ((slotPos = index.getInt(i * SLOT_SIZE + 4)) != SLOT_EMPTY && slotPos != SLOT_DELETED)
+            i = (i + 1) & mask;
+        index.putInt(i * SLOT_SIZE, hc).putInt(i * SLOT_SIZE + 4, pos + 1);
+        if (slotPos == SLOT_EMPTY)
+            setUsed(bucket, used(bucket) + 1);
+        filters[bucket].put(hc);
+        if (filters[bucket].isFull())
+            rebuildFilter(bucket);
+    }
+
+    /**
+     * Replaces a filter of a bucket by a new one with keys of live records, its capacity is twice the number of used
+     * index slots, so a filter is rebuilt after at least as many inserts as it has keys.
+     */
+    private void rebuildFilter(int bucket) {
+        final BloomFilter filter = new BloomFilter(Math.max(MIN_FILTER_CAPACITY, 2 * used(bucket)), FILTER_FPP);
+        final ByteBuffer index = indexes[bucket];
+        for (int i = 0; i < slotsPerBucket; i++) {
+            final int pos = index.getInt(i * SLOT_SIZE + 4);
+            if (pos != SLOT_EMPTY && pos != SLOT_DELETED)
+                filter.put(index.getInt(i * SLOT_SIZE));
+        }
+        filters[bucket] = filter;
+    }
+
+    /**
+     * Loads filters saved by {@link #close()}.
+     * @return - false if there are no valid filters for this cache.
+     */
+    private boolean readFilters() {
+        if (!filtersFile.exists())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filtersFile)))) {
+            if (in.readLong() != BLOOM_MAGIC || in.readInt() != filters.length)
+                return false;
+            for (int i = 0; i < filters.length; i++)
+                filters[i] = BloomFilter.readFrom(in);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void writeFilters() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filtersFile)))) {
+            out.writeLong(BLOOM_MAGIC);
+            out.writeInt(filters.length);
+            for (BloomFilter filter : filters)
+                filter.writeTo(out);
+        }
+    }
+
+    private static byte[] key(ByteBuffer buff, int pos) {
+        final byte[] keyBytes = new byte[buff.getInt(pos + 13)];
+        final ByteBuffer dup = buff.duplicate();
+        dup.position(pos + RECORD_HEADER_SIZE);
+        dup.get(keyBytes);
+        return keyBytes;
+    }
+
+    private static boolean keyEquals(ByteBuffer buff, int pos, byte[] keyBytes) {
+        if (buff.getInt(pos + 13) != keyBytes.length)
+            return false;
+        final int keyPos = pos + RECORD_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buff.get(keyPos + i) != keyBytes[i])
+                return false;
+        }
+        return true;
+    }
 
-        while(buff.hasRemaining())
-        {
-            // hc:Int, prio:long, key_len:Int, val_len:Int, key:Bytes,  val:Bytes
-            byte x = buff.get();
-            if(x == 0) return null;
-            int keyHC = buff.getInt();
-            buff.getLong(); // prio
-            int keyLen = buff.getInt();
-            int valLen = buff.getInt();
-            if(keyHC != hc)
-            {
-                buff.position(buff.position() + keyLen + valLen);
-                continue;
+    /**
+     * Drops dead and expired records of a bucket by moving live ones to its beginning and rebuilds the bucket's index.
+     */
+    private void compactBucket(int bucket) {
+        final long now = System.currentTimeMillis();
+        final ByteBuffer buff = buckectsRw[bucket];
+        final int end = buff.position();
+        final ByteBuffer src = buff.duplicate();
+        src.position(0).limit(end);
+        final ByteBuffer live = ByteBuffer.allocate(end);
+        while (src.hasRemaining()) {
+            final int pos = src.position();
+            final byte x = src.get();
+            if (x == RECORD_END)
+                break;
+            src.getInt(); // hc
+            final long expireAt = src.getLong();
+            final int keyLen = src.getInt();
+            final int valLen = src.getInt();
+            src.getLong(); // seq
+            src.getInt(); // crc
+            src.position(src.position() + keyLen + valLen);
+            if (x == RECORD_LIVE && !Expiry.isExpired(expireAt, now)) {
+                final ByteBuffer record = src.duplicate();
+                record.position(pos).limit(src.position());
+                live.put(record);
             }
-            byte[] keyBytes1 = new byte[keyLen];
-            buff.get(keyBytes1);
-            if(Arrays.equals(keyBytes, keyBytes1)) {
-                byte[] valBytes = new byte[valLen];
-                buff.get(valBytes);
-                return valBytes;
+        }
+        live.flip();
+        buff.position(0);
+        buff.put(live);
+        final int newEnd = buff.position();
+        for (int i = newEnd; i < end; i++)
+            buff.put(i, RECORD_END);
+        rebuildIndex(bucket);
+    }
+
+    /**
+     * Clears index slots of a bucket and fills them by scanning the bucket data up to its write position. If there are
+     * several live records of a key, the one with the greatest sequence number is indexed and the others are marked as
+     * dead.
+     */
+    private void rebuildIndex(int bucket) {
+        final ByteBuffer index = indexes[bucket];
+        for (int i = 0; i < index.capacity(); i += 8)
+            index.putLong(i, 0);
+        setUsed(bucket, 0);
+        filters[bucket] = new BloomFilter(filters[bucket] == null
+                ? MIN_FILTER_CAPACITY : filters[bucket].capacity(), FILTER_FPP);
+
+        final ByteBuffer buff = buckectsRw[bucket];
+        final int end = buff.position();
+        int pos = 0;
+        while (pos < end) {
+            final byte x = buff.get(pos);
+            if (x == RECORD_END)
+                break;
+            final int keyLen = buff.getInt(pos + 13);
+            final int valLen = buff.getInt(pos + 17);
+            if (x == RECORD_LIVE) {
+                final int hc = buff.getInt(pos + 1);
+                // a key is copied out only if the filter has seen its hash, so unique keys are rarely compared
+                final int slot = filters[bucket].mightContain(hc) ? findSlot(bucket, hc, key(buff, pos)) : -1;
+                if (slot < 0) {
+                    insertSlot(bucket, hc, pos);
+                } else {
+                    final int other = index.getInt(slot * SLOT_SIZE + 4) - 1;
+                    if (buff.getLong(other + 21) < buff.getLong(pos + 21)) {
+                        buff.put(other, RECORD_DEAD);
+                        index.putInt(slot * SLOT_SIZE + 4, pos + 1);
+                    } else {
+                        buff.put(pos, RECORD_DEAD);
+                    }
+                }
             }
-            else
-                buff.position(buff.position() + valLen);
+            pos += RECORD_HEADER_SIZE + keyLen + valLen;
         }
-        return null;
+        setCursor(bucket, end);
     }
 
-    private byte[] objectToBytes(Object key) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final ObjectOutputStream stream = new ObjectOutputStream(baos);
-            stream.writeObject(key);
-            stream.flush();
-            return baos.toByteArray();
+    /**
+     * Cuts a bucket at its first invalid (torn, corrupted or never written) record and rebuilds its index.
+     */
+    private void recover(int bucket) {
+        final ByteBuffer buff = buckectsRw[bucket];
+        long maxSeq = 0;
+        int pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= bufferSize) {
+            final byte x = buff.get(pos);
+            if (x != RECORD_LIVE && x != RECORD_DEAD)
+                break;
+            final int keyLen = buff.getInt(pos + 13);
+            final int valLen = buff.getInt(pos + 17);
+            if (keyLen < 0 || valLen < 0 || pos + (long) RECORD_HEADER_SIZE + keyLen + valLen > bufferSize)
+                break;
+            if (buff.getInt(pos + 29) != checksum(buff, pos, keyLen + valLen))
+                break;
+            maxSeq = Math.max(maxSeq, buff.getLong(pos + 21));
+            pos += RECORD_HEADER_SIZE + keyLen + valLen;
         }
-        catch(IOException e) {
-            throw new RuntimeException(e);
+        sequence.accumulateAndGet(maxSeq, Math::max);
+        if (pos < bufferSize)
+            buff.put(pos, RECORD_END);
+        buff.position(pos);
+        rebuildIndex(bucket);
+    }
+
+    /**
+     * @return - checksum of a record header (starting at 'pos', without the valid flag and checksum itself) and the
+     * given key and value.
+     */
+    private static int checksum(ByteBuffer buff, int pos, byte[] keyBytes, byte[] valBytes) {
+        final CRC32C crc = new CRC32C();
+        final ByteBuffer header = buff.duplicate();
+        header.limit(pos + 29).position(pos + 1);
+        crc.update(header);
+        crc.update(keyBytes);
+        crc.update(valBytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return - checksum of a record stored at 'pos'.
+     */
+    private static int checksum(ByteBuffer buff, int pos, int dataLen) {
+        final CRC32C crc = new CRC32C();
+        final ByteBuffer header = buff.duplicate();
+        header.limit(pos + 29).position(pos + 1);
+        crc.update(header);
+        final ByteBuffer data = buff.duplicate();
+        data.limit(pos + RECORD_HEADER_SIZE + dataLen).position(pos + RECORD_HEADER_SIZE);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Forces written records and the index to the disk.
+     */
+    public void force() {
+        for (int i = 0; i < buckectsRw.length; i++) {
+            final long stamp = locks[i].readLock();
+            try {
+                buckectsRw[i].force();
+                indexes[i].force();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
         }
+        indexHeader.force();
     }
 
+    /**
+     * Forces a bucket and its index region, must be called under a write lock of the bucket.
+     */
+    private void forceBucket(int bucket) {
+        buckectsRw[bucket].force();
+        indexes[bucket].force();
+    }
 
-    private Object objectFromBytes(byte[] valBytes) {
-        try {
-            ByteArrayInputStream baos = new ByteArrayInputStream(valBytes);
-            final ObjectInputStream stream = new ObjectInputStream(baos);
-            return stream.readObject();
+    /**
+     * Must be called under a write lock of a bucket, {@link #close()} takes the locks after it marks the cache as
+     * closed, so no write gets between a clean shutdown mark and the next start.
+     */
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Cache is closed.");
+    }
+
+    /**
+     * Stops periodic flushing, forces data to the disk, saves key filters and marks the shutdown as clean, so the next
+     * start trusts the index instead of scanning the data. Writes are rejected after that, reads are still served.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        catch(Exception e) {
-            throw new RuntimeException(e);
+        force();
+        try {
+            writeFilters();
+        } catch (IOException e) {
+            // filters are rebuilt from the index on next start
+            //noinspection ResultOfMethodCallIgnored
+            filtersFile.delete();
         }
+        indexHeader.putLong(SEQUENCE_OFFSET, sequence.get());
+        indexHeader.putInt(CLEAN_OFFSET, 1);
+        indexHeader.force();
+    }
+
+    private int cursor(int bucket) {
+        return indexHeader.getInt(INDEX_HEADER_FIXED_SIZE + 8 * bucket);
+    }
+
+    private void setCursor(int bucket, int cursor) {
+        indexHeader.putInt(INDEX_HEADER_FIXED_SIZE + 8 * bucket, cursor);
+    }
+
+    private int used(int bucket) {
+        return indexHeader.getInt(INDEX_HEADER_FIXED_SIZE + 8 * bucket + 4);
+    }
+
+    private void setUsed(int bucket, int used) {
+        indexHeader.putInt(INDEX_HEADER_FIXED_SIZE + 8 * bucket + 4, used);
+    }
+
+    private int maxUsedSlots() {
+        return slotsPerBucket - (slotsPerBucket >>> 2);
+    }
+
+    private static int mix(int hc) {
+        final int h = hc * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pageAligned(long size) {
+        return (size + 4095) & ~4095L;
     }
 
-    private MappedByteBuffer getByteBufferByKeyRw(int keyHc) {
-        int hc = Math.abs(keyHc) % buckectsRw.length;
-        return buckectsRw[hc];
+    private int bucketOf(int keyHc) {
+        return Math.floorMod(keyHc, buckectsRw.length);
     }
 }
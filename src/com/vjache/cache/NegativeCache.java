@@ -0,0 +1,150 @@
+package com.vjache.cache;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers for a short time keys which were not found in the next level (e.g. a {@link ValueComputer} returned null),
+ * so repeated lookups of absent keys do not reach slow levels. It is meant to be put in front of persistent layers or
+ * a value computer. A put of a key forgets it, a value which appears below without a put through this cache becomes
+ * visible when the key expires.
+ *
+ * Absent keys are kept in a bounded {@link ConcurrentMemCacheMRU} with expiration after write, its metrics are
+ * metrics of this cache, i.e. a hit is a lookup answered as absent. A put which runs concurrently with a lookup of the
+ * same key can not be hidden by it: puts advance a generation of the key (shared by keys of a stripe) and a lookup
+ * takes back its mark if the generation changed meanwhile.
+ */
+public class NegativeCache implements AsyncCache {
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final ConcurrentMemCacheMRU absent;
+    private final Cache next;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /**
+     * @param ttl - how long a key is remembered as absent
+     * @param unit - time unit of ttl
+     * @param maxKeys - max number of remembered keys
+     * @param next - next cache level
+     */
+    public NegativeCache(long ttl, TimeUnit unit, int maxKeys, Cache next) {
+        this.absent = new ConcurrentMemCacheMRU(maxKeys, Weigher.SINGLETON, 1, Expiry.afterWrite(ttl, unit),
+                SegmentedMemCache.defaultConcurrencyLevel(), new DummyCache());
+        this.next = next;
+    }
+
+    public CacheMetrics metrics() {
+        return absent.metrics();
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (absent.get(key) != null)
+            return null;
+        final long generation = generation(key);
+        final Object val = next.get(key);
+        if (val == null)
+            markAbsent(key, generation);
+        return val;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        next.put(key, value);
+        forget(key);
+    }
+
+    @Override
+    public void put(Object key, Object value, long ttl, TimeUnit unit) {
+        next.put(key, value, ttl, unit);
+        forget(key);
+    }
+
+    @Override
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        final List<Object> unknown = new ArrayList<>(keys.size());
+        final List<Long> generations = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            if (absent.get(key) == null) {
+                unknown.add(key);
+                generations.add(generation(key));
+            }
+        }
+        if (unknown.isEmpty())
+            return new HashMap<>();
+        final Map<Object, Object> found = next.getAll(unknown);
+        for (int i = 0; i < unknown.size(); i++) {
+            if (!found.containsKey(unknown.get(i)))
+                markAbsent(unknown.get(i), generations.get(i));
+        }
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<?, ?> entries) {
+        next.putAll(entries);
+        for (Object key : entries.keySet())
+            forget(key);
+    }
+
+    @Override
+    public CompletableFuture<Object> getAsync(Object key) {
+        if (absent.get(key) != null)
+            return CompletableFuture.completedFuture(null);
+        final long generation = generation(key);
+        final CompletableFuture<Object> found = next instanceof AsyncCache
+                ? ((AsyncCache) next).getAsync(key)
+                : CompletableFuture.supplyAsync(() -> next.get(key), BackgroundExecutor.instance());
+        return found.thenApply(val -> {
+            if (val == null)
+                markAbsent(key, generation);
+            return val;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value) {
+        final CompletableFuture<Void> put = next instanceof AsyncCache
+                ? ((AsyncCache) next).putAsync(key, value)
+                : CompletableFuture.runAsync(() -> next.put(key, value), BackgroundExecutor.instance());
+        return put.thenRun(() -> forget(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit) {
+        final CompletableFuture<Void> put = next instanceof AsyncCache
+                ? ((AsyncCache) next).putAsync(key, value, ttl, unit)
+                : CompletableFuture.runAsync(() -> next.put(key, value, ttl, unit), BackgroundExecutor.instance());
+        return put.thenRun(() -> forget(key));
+    }
+
+    private long generation(Object key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * Marks a key as absent, the mark is taken back if a put of the key completed since the generation was read.
+     */
+    private void markAbsent(Object key, long generation) {
+        absent.put(key, Boolean.TRUE);
+        if (generations.get(stripe(key)) != generation)
+            absent.remove_(key);
+    }
+
+    /**
+     * Called after a put reached the next level: a lookup which saw the key missing either notices a new generation
+     * or its mark is removed here.
+     */
+    private void forget(Object key) {
+        generations.incrementAndGet(stripe(key));
+        absent.remove_(key);
+    }
+
+    private static int stripe(Object key) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+}
@@ -0,0 +1,415 @@
+package com.vjache.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * In-memory cache which keeps serialized keys and values out of java heap, so it may hold gigabytes of data without
+ * adding to GC pauses. Least recently used entries are evicted (approximated by a CLOCK algorithm).
+ *
+ * Keys are distributed over segments, each segment has its own lock, memory budget, slab allocator and hash index:
+ *  * memory is allocated by direct byte buffers of a page size, each page is carved into equal chunks of one size
+ *    class (64, 128, 256 ... page size bytes), an entry is stored in a smallest chunk it fits to;
+ *  * when memory budget is exhausted a chunk of the required size class is reclaimed by a CLOCK hand which runs over
+ *    pages of the class and evicts the first entry which was not accessed since the previous pass; if a size class
+ *    has no pages at all a whole page is taken away from the biggest class;
+ *  * index is an open addressing table of longs (hash:Int, chunk:Int) in a direct buffer with linear probing and
+ *    backward shift deletion.
+ * Chunk format: flags:byte, hash:Int, key_len:Int, val_len:Int, expire_at:Long, key:Bytes, val:Bytes
+ * Pairs put with a time-to-live keep their expiration time in millis (0 -- never expires), an expired pair is a miss
+ * and its chunk is freed on access.
+ *
+ * Evicted entries (and entries too big for a page) are deserialized and passed to the next level. Only a few small
+ * arrays of free chunk numbers are kept on heap.
+ */
+public class OffHeapMemCache extends CacheLayer {
+
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int MIN_CHUNK_SIZE = 1 << MIN_CHUNK_SHIFT;
+    private static final int CHUNK_HEADER_SIZE = 1 + 4 + 4 + 4 + 8;
+    private static final byte FLAG_USED = 1;
+    private static final byte FLAG_REFERENCED = 2;
+    private static final int INITIAL_TABLE_SIZE = 1024;
+
+    private static class IntStack {
+        int[] data = new int[16];
+        int size = 0;
+
+        void push(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int pop() {
+            return data[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private final class Segment {
+        private final long maxBytes;
+        private final ArrayList<ByteBuffer> pages = new ArrayList<>();
+        private final ArrayList<Integer> pageClass = new ArrayList<>();
+        private final IntStack[] free = new IntStack[classes];
+        private final IntStack[] classPages = new IntStack[classes];
+        private final int[] handPage = new int[classes];
+        private final int[] handChunk = new int[classes];
+        private ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_TABLE_SIZE * 8);
+        private int tableMask = INITIAL_TABLE_SIZE - 1;
+        private int count = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            for (int c = 0; c < classes; c++) {
+                free[c] = new IntStack();
+                classPages[c] = new IntStack();
+            }
+        }
+
+        /**
+         * @return - entry of the key and value bytes or null.
+         */
+        synchronized SimpleEntry get(int hash, byte[] keyBytes) {
+            final int slot = findSlot(hash, keyBytes);
+            if (slot < 0)
+                return null;
+            final long addr = chunkAddress(table.getLong(slot * 8));
+            final ByteBuffer page = page(addr);
+            final int off = offset(addr);
+            final long expireAt = page.getLong(off + 13);
+            if (Expiry.isExpired(expireAt, System.currentTimeMillis())) {
+                release(slot);
+                return null;
+            }
+            page.put(off, (byte) (page.get(off) | FLAG_REFERENCED));
+            final byte[] valBytes = new byte[page.getInt(off + 9)];
+            final ByteBuffer dup = page.duplicate();
+            dup.position(off + CHUNK_HEADER_SIZE + keyBytes.length);
+            dup.get(valBytes);
+            return new SimpleEntry(keyBytes, valBytes, expireAt);
+        }
+
+        /**
+         * @return - evicted entries, null if nothing is evicted
+         */
+        synchronized List<Entry<Object, Object>> put(int hash, byte[] keyBytes, byte[] valBytes,
+                                                     Object key, Object value, long expireAt) {
+            final int slot = findSlot(hash, keyBytes);
+            if (slot >= 0)
+                release(slot);
+            final int c = sizeClass(CHUNK_HEADER_SIZE + keyBytes.length + valBytes.length);
+            final List<Entry<Object, Object>> evicted = new ArrayList<>(1);
+            final int chunk = c < 0 ? -1 : allocate(c, evicted);
+            if (chunk < 0) {
+                evicted.add(new SimpleEntry(key, value, expireAt));
+                return evicted;
+            }
+            final long addr = (long) chunk << MIN_CHUNK_SHIFT;
+            final ByteBuffer page = page(addr);
+            final int off = offset(addr);
+            page.put(off, FLAG_USED).putInt(off + 1, hash).putInt(off + 5, keyBytes.length).putInt(off + 9, valBytes.length)
+                    .putLong(off + 13, expireAt);
+            final ByteBuffer dup = page.duplicate();
+            dup.position(off + CHUNK_HEADER_SIZE);
+            dup.put(keyBytes).put(valBytes);
+            insertSlot(hash, chunk);
+            return evicted.isEmpty() ? null : evicted;
+        }
+
+        synchronized boolean remove(int hash, byte[] keyBytes) {
+            final int slot = findSlot(hash, keyBytes);
+            if (slot < 0)
+                return false;
+            release(slot);
+            return true;
+        }
+
+        private int allocate(int c, List<Entry<Object, Object>> evicted) {
+            if (!free[c].isEmpty())
+                return free[c].pop();
+            if ((long) (pages.size() + 1) * pageSize <= maxBytes) {
+                addPage(c, pages.size());
+                pages.add(ByteBuffer.allocateDirect(pageSize));
+                pageClass.add(c);
+                return free[c].pop();
+            }
+            if (classPages[c].isEmpty())
+                return reassignPage(c, evicted) ? free[c].pop() : -1;
+            return clockEvict(c, evicted);
+        }
+
+        private void addPage(int c, int pageNo) {
+            classPages[c].push(pageNo);
+            final int chunksPerPage = pageSize >>> (c + MIN_CHUNK_SHIFT);
+            final int first = (int) (((long) pageNo * pageSize) >>> MIN_CHUNK_SHIFT);
+            for (int i = chunksPerPage - 1; i >= 0; i--)
+                free[c].push(first + (i << c));
+        }
+
+        /**
+         * Runs CLOCK hand over pages of a size class until an entry which was not referenced since the previous pass
+         * is found, evicts it and returns its chunk.
+         */
+        private int clockEvict(int c, List<Entry<Object, Object>> evicted) {
+            final int chunkSize = MIN_CHUNK_SIZE << c;
+            final int chunksPerPage = pageSize / chunkSize;
+            while (true) {
+                if (handPage[c] >= classPages[c].size)
+                    handPage[c] = 0;
+                final int pageNo = classPages[c].data[handPage[c]];
+                final int off = handChunk[c] * chunkSize;
+                if (++handChunk[c] == chunksPerPage) {
+                    handChunk[c] = 0;
+                    handPage[c]++;
+                }
+                final ByteBuffer page = pages.get(pageNo);
+                final byte flags = page.get(off);
+                if ((flags & FLAG_REFERENCED) != 0) {
+                    page.put(off, FLAG_USED);
+                } else if ((flags & FLAG_USED) != 0) {
+                    final long addr = (long) pageNo * pageSize + off;
+                    evicted.add(readEntry(addr));
+                    removeSlot(findSlot(addr));
+                    page.put(off, (byte) 0);
+                    return (int) (addr >>> MIN_CHUNK_SHIFT);
+                }
+            }
+        }
+
+        /**
+         * Moves a page from the size class which has most of pages to a given class, entries of the page are evicted.
+         */
+        private boolean reassignPage(int c, List<Entry<Object, Object>> evicted) {
+            int donor = -1;
+            for (int d = 0; d < classes; d++) {
+                if (d != c && (donor < 0 || classPages[d].size > classPages[donor].size))
+                    donor = d;
+            }
+            if (donor < 0 || classPages[donor].isEmpty())
+                return false;
+            final int pageNo = classPages[donor].pop();
+            final int chunkSize = MIN_CHUNK_SIZE << donor;
+            final ByteBuffer page = pages.get(pageNo);
+            for (int off = 0; off < pageSize; off += chunkSize) {
+                if ((page.get(off) & FLAG_USED) != 0) {
+                    final long addr = (long) pageNo * pageSize + off;
+                    evicted.add(readEntry(addr));
+                    removeSlot(findSlot(addr));
+                }
+                page.put(off, (byte) 0);
+            }
+            final int first = (int) (((long) pageNo * pageSize) >>> MIN_CHUNK_SHIFT);
+            final int last = first + (pageSize >>> MIN_CHUNK_SHIFT);
+            final IntStack f = free[donor];
+            int n = 0;
+            for (int i = 0; i < f.size; i++) {
+                if (f.data[i] < first || f.data[i] >= last)
+                    f.data[n++] = f.data[i];
+            }
+            f.size = n;
+            handChunk[donor] = 0;
+            pageClass.set(pageNo, c);
+            addPage(c, pageNo);
+            return true;
+        }
+
+        private void release(int slot) {
+            final long addr = chunkAddress(table.getLong(slot * 8));
+            page(addr).put(offset(addr), (byte) 0);
+            free[pageClass.get((int) (addr / pageSize))].push((int) (addr >>> MIN_CHUNK_SHIFT));
+            removeSlot(slot);
+        }
+
+        private Entry<Object, Object> readEntry(long addr) {
+            final ByteBuffer dup = page(addr).duplicate();
+            final int off = offset(addr);
+            final byte[] keyBytes = new byte[dup.getInt(off + 5)];
+            final byte[] valBytes = new byte[dup.getInt(off + 9)];
+            dup.position(off + CHUNK_HEADER_SIZE);
+            dup.get(keyBytes).get(valBytes);
+            return new SimpleEntry(serializer.deserialize(keyBytes), serializer.deserialize(valBytes),
+                    dup.getLong(off + 13));
+        }
+
+        private int findSlot(int hash, byte[] keyBytes) {
+            for (int i = hash & tableMask; ; i = (i + 1) & tableMask) {
+                final long e = table.getLong(i * 8);
+                if (e == 0)
+                    return -1;
+                if ((int) (e >>> 32) == hash && keyEquals(chunkAddress(e), keyBytes))
+                    return i;
+            }
+        }
+
+        private int findSlot(long addr) {
+            final int hash = page(addr).getInt(offset(addr) + 1);
+            final long chunk = (addr >>> MIN_CHUNK_SHIFT) + 1;
+            for (int i = hash & tableMask; ; i = (i + 1) & tableMask) {
+                final long e = table.getLong(i * 8);
+                if ((e & 0xffffffffL) == chunk)
+                    return i;
+            }
+        }
+
+        private void insertSlot(int hash, int chunk) {
+            if (++count > (tableMask + 1) * 3L / 4)
+                resize();
+            int i = hash & tableMask;
+            while (table.getLong(i * 8) != 0)
+                i = (i + 1) & tableMask;
+            table.putLong(i * 8, ((long) hash << 32) | ((chunk + 1L) & 0xffffffffL));
+        }
+
+        private void removeSlot(int i) {
+            count--;
+            int j = i;
+            while (true) {
+                j = (j + 1) & tableMask;
+                final long e = table.getLong(j * 8);
+                if (e == 0)
+                    break;
+                final int home = (int) (e >>> 32) & tableMask;
+                // move the entry back if its home slot is not in (i, j] cyclically
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    table.putLong(i * 8, e);
+                    i = j;
+                }
+            }
+            table.putLong(i * 8, 0);
+        }
+
+        private void resize() {
+            final ByteBuffer old = table;
+            final int size = (tableMask + 1) * 2;
+            table = ByteBuffer.allocateDirect(size * 8);
+            tableMask = size - 1;
+            for (int k = 0; k < old.capacity(); k += 8) {
+                final long e = old.getLong(k);
+                if (e != 0) {
+                    int i = (int) (e >>> 32) & tableMask;
+                    while (table.getLong(i * 8) != 0)
+                        i = (i + 1) & tableMask;
+                    table.putLong(i * 8, e);
+                }
+            }
+        }
+
+        private boolean keyEquals(long addr, byte[] keyBytes) {
+            final ByteBuffer page = page(addr);
+            final int off = offset(addr);
+            if (page.getInt(off + 5) != keyBytes.length)
+                return false;
+            for (int i = 0, p = off + CHUNK_HEADER_SIZE; i < keyBytes.length; i++, p++) {
+                if (page.get(p) != keyBytes[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private ByteBuffer page(long addr) {
+            return pages.get((int) (addr / pageSize));
+        }
+
+        private int offset(long addr) {
+            return (int) (addr % pageSize);
+        }
+    }
+
+    private final Serializer serializer;
+    private final int pageSize;
+    private final int classes;
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public OffHeapMemCache(long maxBytes, Cache next) {
+        this(maxBytes, 1024 * 1024, SegmentedMemCache.defaultConcurrencyLevel(), new BinarySerializer(), next);
+    }
+
+    /**
+     * @param maxBytes - max amount of off-heap memory taken by pages
+     * @param pageSize - size of a page (power of two, at least 1024), it is also the max size of an entry
+     * @param concurrencyLevel - estimated number of concurrently accessing threads
+     * @param serializer - serializer of keys and values
+     * @param next - next cache level which receives evicted entries
+     */
+    public OffHeapMemCache(long maxBytes, int pageSize, int concurrencyLevel, Serializer serializer, Cache next) {
+        super(next);
+        if (pageSize < 1024 || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("Page size must be a power of two not less than 1024.");
+        if (maxBytes < pageSize)
+            throw new IllegalArgumentException("Max bytes must be not less than a page size.");
+        this.serializer = metrics.timed(serializer);
+        this.pageSize = pageSize;
+        this.classes = Integer.numberOfTrailingZeros(pageSize) - MIN_CHUNK_SHIFT + 1;
+        int n = Integer.highestOneBit((int) Math.min(maxBytes / pageSize, 1 << 16));
+        while (n > 1 && n >= 2 * concurrencyLevel)
+            n >>>= 1;
+        segments = new Segment[n];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(maxBytes / n);
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final SimpleEntry e = getEntry_(key);
+        return e == null ? null : e.getValue();
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final int hash = hash(keyBytes);
+        final SimpleEntry e = segmentFor(hash).get(hash, keyBytes);
+        return e == null ? null : new SimpleEntry(key, serializer.deserialize((byte[]) e.getValue()), e.expireAt);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final byte[] valBytes = serializer.serialize(value);
+        final int hash = hash(keyBytes);
+        return segmentFor(hash).put(hash, keyBytes, valBytes, key, value, expireAt);
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final byte[] keyBytes = serializer.serialize(key);
+        final int hash = hash(keyBytes);
+        return segmentFor(hash).remove(hash, keyBytes);
+    }
+
+    private Segment segmentFor(int hash) {
+        // high bits choose a segment, low bits are used by the segment's table
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(byte[] keyBytes) {
+        final int h = Arrays.hashCode(keyBytes) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long chunkAddress(long slot) {
+        return ((slot & 0xffffffffL) - 1) << MIN_CHUNK_SHIFT;
+    }
+
+    /**
+     * @return - size class of a chunk which fits the given number of bytes or -1 if it does not fit to a page.
+     */
+    private int sizeClass(int size) {
+        final int c = Math.max(0, 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CHUNK_SHIFT);
+        return c < classes ? c : -1;
+    }
+}
@@ -0,0 +1,331 @@
+package com.vjache.cache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File based cache which packs key-value pairs into one append-only file per bucket instead of one file per pair (see
+ * {@link FileCache}). Bucket of a key is computed based on a hash of a key.
+ *
+ * Each bucket has an in-memory index key -> (offset, length) which is loaded lazily on first access to the bucket, so
+ * a lookup is a single positioned read of a value from the pack file. Index is persisted into an '.idx' file on
+ * {@link #close()} and when a pack is compacted. An index file remembers the length of its pack, records appended
+ * after that (e.g. if the process was killed) are replayed from the pack on load. When dead (overwritten) records take
+ * more than a half of a pack the pack is rewritten with live records only.
+ *
+ * Pack record format: key_len:Int, val_len:Int, expire_at:Long, key:Bytes, val:Bytes
+ * A removal appends a tombstone record: key_len:Int, -1:Int, 0:Long, key:Bytes
+ * Index file format: pack_len:Long, count:Int, then count times key_len:Int, key:Bytes, offset:Long, val_len:Int,
+ * expire_at:Long
+ *
+ * Records put with a time-to-live keep their expiration time in millis (0 -- never expires), expired records are misses
+ * and are dropped by compaction.
+ *
+ * Buckets are locked independently. Packs are read through {@link ReopeningFileChannel}, so an interrupted caller does
+ * not close them for other threads.
+ */
+public class PackFileCache extends CacheLayer implements Closeable {
+
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8;
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final int TOMBSTONE = -1;
+
+    private static class Location {
+        final long offset;
+        final int keyLen;
+        final int valLen;
+        final long expireAt;
+
+        Location(long offset, int keyLen, int valLen, long expireAt) {
+            this.offset = offset;
+            this.keyLen = keyLen;
+            this.valLen = valLen;
+            this.expireAt = expireAt;
+        }
+
+        long valueOffset() {
+            return offset + RECORD_HEADER_SIZE + keyLen;
+        }
+
+        int recordSize() {
+            return RECORD_HEADER_SIZE + keyLen + valLen;
+        }
+    }
+
+    private class Bucket {
+        private final File packFile;
+        private final File indexFile;
+        private ReopeningFileChannel channel;
+        private HashMap<ByteKey, Location> index;
+        private long size;
+        private long deadBytes;
+
+        Bucket(int number) {
+            packFile = new File(rootDir, "_" + number + ".pack");
+            indexFile = new File(rootDir, "_" + number + ".idx");
+        }
+
+        /**
+         * @return - entry of the key and value bytes or null.
+         */
+        synchronized SimpleEntry get(ByteKey key) throws IOException {
+            ensureLoaded();
+            final Location loc = index.get(key);
+            if (loc == null || Expiry.isExpired(loc.expireAt, System.currentTimeMillis()))
+                return null;
+            final ByteBuffer buff = ByteBuffer.allocate(loc.valLen);
+            channel.readFully(buff, loc.valueOffset());
+            return new SimpleEntry(key, buff.array(), loc.expireAt);
+        }
+
+        synchronized void put(ByteKey key, byte[] valBytes, long expireAt) throws IOException {
+            ensureLoaded();
+            final ByteBuffer buff = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.bytes.length + valBytes.length);
+            buff.putInt(key.bytes.length).putInt(valBytes.length).putLong(expireAt).put(key.bytes).put(valBytes).flip();
+            final long offset = size;
+            channel.writeFully(buff, offset);
+            size += buff.limit();
+            final Location old = index.put(key, new Location(offset, key.bytes.length, valBytes.length, expireAt));
+            if (old != null) {
+                deadBytes += old.recordSize();
+                compactIfNeeded();
+            }
+        }
+
+        synchronized boolean remove(ByteKey key) throws IOException {
+            ensureLoaded();
+            final Location old = index.remove(key);
+            if (old == null)
+                return false;
+            final ByteBuffer buff = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.bytes.length);
+            buff.putInt(key.bytes.length).putInt(TOMBSTONE).putLong(0).put(key.bytes).flip();
+            channel.writeFully(buff, size);
+            size += buff.limit();
+            deadBytes += old.recordSize() + buff.limit();
+            compactIfNeeded();
+            return true;
+        }
+
+        private void compactIfNeeded() throws IOException {
+            if (size >= MIN_COMPACTION_SIZE && deadBytes * 2 > size)
+                compact();
+        }
+
+        synchronized void close() throws IOException {
+            if (channel != null) {
+                saveIndex();
+                channel.close();
+                channel = null;
+                index = null;
+            }
+        }
+
+        private void ensureLoaded() throws IOException {
+            if (channel != null)
+                return;
+            channel = new ReopeningFileChannel(packFile.toPath());
+            index = new HashMap<>();
+            size = 0;
+            deadBytes = 0;
+            long indexed = loadIndex();
+            if (indexed > channel.size()) {
+                // index does not match the pack, rebuild it from scratch
+                index.clear();
+                indexed = 0;
+            }
+            replay(indexed);
+        }
+
+        /**
+         * @return - length of the pack covered by the index file or 0 if there is no index file.
+         */
+        private long loadIndex() throws IOException {
+            if (!indexFile.exists())
+                return 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                final long packLen = in.readLong();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final byte[] keyBytes = new byte[in.readInt()];
+                    in.readFully(keyBytes);
+                    final long offset = in.readLong();
+                    final int valLen = in.readInt();
+                    final long expireAt = in.readLong();
+                    index.put(new ByteKey(keyBytes), new Location(offset, keyBytes.length, valLen, expireAt));
+                }
+                long live = 0;
+                for (Location loc : index.values())
+                    live += loc.recordSize();
+                deadBytes = packLen - live;
+                return packLen;
+            } catch (EOFException e) {
+                index.clear();
+                deadBytes = 0;
+                return 0;
+            }
+        }
+
+        private void replay(long from) throws IOException {
+            final long packLen = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            long pos = from;
+            while (pos + RECORD_HEADER_SIZE <= packLen) {
+                header.clear();
+                channel.readFully(header, pos);
+                final int keyLen = header.getInt();
+                final int valLen = header.getInt();
+                final long expireAt = header.getLong();
+                final long recordSize = RECORD_HEADER_SIZE + keyLen + Math.max(valLen, 0);
+                if (keyLen < 0 || valLen < TOMBSTONE || pos + recordSize > packLen)
+                    break;
+                final ByteBuffer keyBuff = ByteBuffer.allocate(keyLen);
+                channel.readFully(keyBuff, pos + RECORD_HEADER_SIZE);
+                final ByteKey key = new ByteKey(keyBuff.array());
+                final Location old = valLen == TOMBSTONE ? index.remove(key)
+                        : index.put(key, new Location(pos, keyLen, valLen, expireAt));
+                if (old != null)
+                    deadBytes += old.recordSize();
+                if (valLen == TOMBSTONE)
+                    deadBytes += recordSize;
+                pos += recordSize;
+            }
+            if (pos < packLen)
+                channel.truncate(pos);
+            size = pos;
+        }
+
+        private void saveIndex() throws IOException {
+            final File tmp = new File(indexFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeLong(size);
+                out.writeInt(index.size());
+                for (Map.Entry<ByteKey, Location> e : index.entrySet()) {
+                    out.writeInt(e.getKey().bytes.length);
+                    out.write(e.getKey().bytes);
+                    out.writeLong(e.getValue().offset);
+                    out.writeInt(e.getValue().valLen);
+                    out.writeLong(e.getValue().expireAt);
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Rewrites the pack with live records only.
+         */
+        private void compact() throws IOException {
+            final File tmp = new File(packFile.getPath() + ".tmp");
+            final HashMap<ByteKey, Location> compacted = new HashMap<>(index.size() * 2);
+            final long now = System.currentTimeMillis();
+            long pos = 0;
+            Files.deleteIfExists(tmp.toPath());
+            try (ReopeningFileChannel out = new ReopeningFileChannel(tmp.toPath())) {
+                for (Map.Entry<ByteKey, Location> e : index.entrySet()) {
+                    final Location loc = e.getValue();
+                    if (Expiry.isExpired(loc.expireAt, now))
+                        continue;
+                    final ByteBuffer record = ByteBuffer.allocate(loc.recordSize());
+                    channel.readFully(record, loc.offset);
+                    out.writeFully(record, pos);
+                    compacted.put(e.getKey(), new Location(pos, loc.keyLen, loc.valLen, loc.expireAt));
+                    pos += loc.recordSize();
+                }
+            }
+            channel.close();
+            // an old index must not be applied to the new pack if the process dies before the new index is saved
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+            Files.move(tmp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = new ReopeningFileChannel(packFile.toPath());
+            index = compacted;
+            size = pos;
+            deadBytes = 0;
+            saveIndex();
+        }
+    }
+
+    private final File rootDir;
+    private final Serializer serializer;
+    private final Bucket[] buckets;
+
+    public PackFileCache(File rootDir, int bucketsNumber, Cache next) {
+        this(rootDir, bucketsNumber, new BinarySerializer(), next);
+    }
+
+    public PackFileCache(File rootDir, int bucketsNumber, Serializer serializer, Cache next) {
+        super(next);
+        this.serializer = metrics.timed(serializer);
+        this.rootDir = new File(rootDir, "_" + bucketsNumber + "p");
+        //noinspection ResultOfMethodCallIgnored
+        this.rootDir.mkdirs();
+        buckets = new Bucket[bucketsNumber];
+        for (int i = 0; i < bucketsNumber; i++)
+            buckets[i] = new Bucket(i);
+    }
+
+    @Override
+    protected boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final SimpleEntry e = getEntry_(key);
+        return e == null ? null : e.getValue();
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final ByteKey k = new ByteKey(serializer.serialize(key));
+        try {
+            final SimpleEntry e = bucketOf(k).get(k);
+            return e == null ? null : new SimpleEntry(key, serializer.deserialize((byte[]) e.getValue()), e.expireAt);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Map.Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final ByteKey k = new ByteKey(serializer.serialize(key));
+        try {
+            bucketOf(k).put(k, serializer.serialize(value), expireAt);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final ByteKey k = new ByteKey(serializer.serialize(key));
+        try {
+            return bucketOf(k).remove(k);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Persists indexes of loaded buckets and closes pack files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Bucket b : buckets)
+            b.close();
+    }
+
+    private Bucket bucketOf(ByteKey k) {
+        return buckets[Math.floorMod(k.hashCode(), buckets.length)];
+    }
+}
@@ -0,0 +1,41 @@
+package com.vjache.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Refresh-after-write settings of a memory cache. Once an entry is older than a refresh threshold the next read still
+ * returns the current value but also starts a single asynchronous reload of the key, so hot keys are renewed before
+ * they expire or go stale and readers do not wait for a slow source (e.g. a {@link ValueComputer}). A reloaded value is
+ * written back into the cache and its next level, an entry with an explicit TTL (given to a put or taken from the next
+ * level) keeps its expiration time, otherwise the default TTL starts again. If a reload fails or finds nothing the old
+ * value is kept and the reload is retried by a later read.
+ */
+public final class RefreshAhead {
+
+    final long refreshAfterMillis;
+    final Function<Object, Object> loader;
+    final Executor executor;
+
+    /**
+     * Refreshes on the shared background executor which uses virtual threads if they are available.
+     */
+    public RefreshAhead(long refreshAfter, TimeUnit unit, Function<Object, Object> loader) {
+        this(refreshAfter, unit, loader, BackgroundExecutor.instance());
+    }
+
+    /**
+     * @param refreshAfter - age of an entry after which it is refreshed on read
+     * @param unit - time unit of refresh threshold
+     * @param loader - loads a fresh value of a key, e.g. 'computer::get' of the last layer
+     * @param executor - executor of reloads
+     */
+    public RefreshAhead(long refreshAfter, TimeUnit unit, Function<Object, Object> loader, Executor executor) {
+        if (refreshAfter <= 0)
+            throw new IllegalArgumentException("Refresh threshold must be positive.");
+        this.refreshAfterMillis = unit.toMillis(refreshAfter);
+        this.loader = loader;
+        this.executor = executor;
+    }
+}
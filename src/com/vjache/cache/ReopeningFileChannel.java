@@ -0,0 +1,99 @@
+package com.vjache.cache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File channel for positional reads and writes which survives interrupts. An interrupt of a thread blocked in an I/O
+ * operation closes a {@link FileChannel} for all threads, so a single interrupted caller would break a layer for
+ * everyone. This channel reopens the file and retries the operation instead, the interrupt status of the caller is
+ * kept. Only {@link #close()} closes it for good, operations after that throw {@link ClosedChannelException}.
+ */
+final class ReopeningFileChannel implements Closeable {
+
+    private interface Operation<T> {
+        T run(FileChannel channel) throws IOException;
+    }
+
+    private final Path path;
+    private volatile FileChannel channel;
+    private volatile boolean closed = false;
+
+    ReopeningFileChannel(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads bytes at a position until the buffer is full and flips it.
+     */
+    void readFully(ByteBuffer buff, long position) throws IOException {
+        retrying(c -> {
+            while (buff.hasRemaining()) {
+                if (c.read(buff, position + buff.position()) < 0)
+                    throw new EOFException();
+            }
+            return null;
+        });
+        buff.flip();
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer at a position (plus the buffer position).
+     */
+    void writeFully(ByteBuffer buff, long position) throws IOException {
+        retrying(c -> {
+            while (buff.hasRemaining())
+                c.write(buff, position + buff.position());
+            return null;
+        });
+    }
+
+    long size() throws IOException {
+        return retrying(FileChannel::size);
+    }
+
+    void truncate(long size) throws IOException {
+        retrying(c -> c.truncate(size));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private <T> T retrying(Operation<T> operation) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final FileChannel c = channel;
+                try {
+                    return operation.run(c);
+                } catch (ClosedChannelException e) {
+                    if (closed)
+                        throw e;
+                    // the channel was closed by an interrupt of this or another thread, the retry must not be
+                    // interrupted again
+                    interrupted |= Thread.interrupted();
+                    reopen(c);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void reopen(FileChannel broken) throws IOException {
+        if (channel == broken && !closed)
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,587 @@
+package com.vjache.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Base of thread safe in-memory caches. Keys are distributed over a power of two number of segments. Each segment has
+ * its own lock and a hash index of {@link LinkedEntry} nodes, so threads working with different segments do not
+ * contend. A concrete retain strategy is implemented per segment.
+ *
+ * Capacity is a max total weight of entries computed by a {@link Weigher} (by default each entry weighs 1, i.e. the
+ * capacity is a number of entries), it is split evenly between segments. Entries heavier than a given fraction of the
+ * capacity are not kept and passed to the next level straight away.
+ *
+ * Entries may expire according to a default {@link Expiry} of the cache or a TTL given on put. An expired entry is a
+ * miss, it is not passed to the next level when evicted. Each segment reclaims expired entries with its own
+ * {@link TimerWheel} which is advanced by regular operations, so there is no background thread and no full scans.
+ *
+ * With {@link RefreshAhead} settings stale entries are reloaded asynchronously on read. Keys due for a refresh are
+ * queued by a segment under its lock and submitted to an executor after the lock is released.
+ *
+ * A hot set (keys only, with their access order and frequencies) may be saved into a snapshot file on shutdown by
+ * {@link #saveSnapshot(File)} and used after a restart by {@link #warmUp(File)} which loads values of those keys from
+ * the next level in background batches.
+ */
+public abstract class SegmentedMemCache extends CacheLayer {
+
+    abstract static class Segment {
+        final HashMap<Object, LinkedEntry> index = new HashMap<>();
+        final long maxWeight;
+        private long maxEntryWeight;
+        private Weigher weigher;
+        private Expiry expiry;
+        private TimerWheel wheel;
+        private long weight = 0;
+        private long refreshAfterMillis = 0;
+        private final ArrayDeque<Object> toRefresh = new ArrayDeque<>();
+        private volatile boolean refreshPending = false;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Object get(Object key) {
+            final LinkedEntry e = lookup(key);
+            return e == null ? null : e.getValue();
+        }
+
+        synchronized SimpleEntry getEntry(Object key) {
+            final LinkedEntry e = lookup(key);
+            return e == null ? null : new SimpleEntry(key, e.getValue(), e.expireAt);
+        }
+
+        /**
+         * @return - explicit deadline of an entry, 0 if the key is absent or its deadline is a default one.
+         */
+        synchronized long explicitDeadline(Object key) {
+            final LinkedEntry e = index.get(key);
+            return e == null || !e.explicitDeadline ? 0 : e.deadline;
+        }
+
+        /**
+         * Finds a live entry and records an access of it or a miss.
+         */
+        private LinkedEntry lookup(Object key) {
+            final long now = System.currentTimeMillis();
+            LinkedEntry e = index.get(key);
+            if (e != null && Expiry.isExpired(e.expireAt, now)) {
+                remove(e);
+                e = null;
+            }
+            expireEntries(now);
+            if (e == null) {
+                onMiss(key);
+                return null;
+            }
+            onHit(e);
+            touch(e, now);
+            if (refreshAfterMillis != 0 && !e.refreshing && now - e.writeTime >= refreshAfterMillis) {
+                e.refreshing = true;
+                toRefresh.add(key);
+                refreshPending = true;
+            }
+            return e;
+        }
+
+        /**
+         * Inserts an entry loaded by a warm-up unless the key was put since the start.
+         * @return - evicted entries or null.
+         */
+        synchronized List<Entry<Object, Object>> putIfAbsent(Object key, Object value, int frequency) {
+            if (index.containsKey(key))
+                return null;
+            restoreFrequency(key, frequency);
+            return put(key, value, 0);
+        }
+
+        /**
+         * Adds live keys of this segment from the hottest to the coldest one and their frequencies to the lists.
+         */
+        synchronized void snapshot(List<Object> keys, List<Integer> frequencies) {
+            final long now = System.currentTimeMillis();
+            forEachHottest(e -> {
+                if (!Expiry.isExpired(e.expireAt, now)) {
+                    keys.add(e.getKey());
+                    frequencies.add(frequency(e.getKey()));
+                }
+            });
+        }
+
+        /**
+         * @return - estimated access frequency of a key, 0 if a policy does not track it.
+         */
+        int frequency(Object key) {
+            return 0;
+        }
+
+        /**
+         * Restores estimated access frequency of a key from a snapshot.
+         */
+        void restoreFrequency(Object key, int frequency) {}
+
+        /**
+         * Called before an overwrite changes the weight of an existing entry.
+         */
+        void onReweigh(LinkedEntry e, long newWeight) {}
+
+        /**
+         * Visits entries from the hottest to the coldest one.
+         */
+        abstract void forEachHottest(Consumer<LinkedEntry> action);
+
+        synchronized boolean invalidate(Object key) {
+            final LinkedEntry e = index.get(key);
+            if (e == null)
+                return false;
+            remove(e);
+            return true;
+        }
+
+        /**
+         * Takes keys queued for a refresh.
+         */
+        synchronized List<Object> drainRefreshes() {
+            final List<Object> keys = new ArrayList<>(toRefresh);
+            toRefresh.clear();
+            refreshPending = false;
+            return keys;
+        }
+
+        /**
+         * Allows a key to be refreshed again after an unsuccessful reload.
+         */
+        synchronized void refreshFailed(Object key) {
+            final LinkedEntry e = index.get(key);
+            if (e != null)
+                e.refreshing = false;
+        }
+
+        synchronized List<Entry<Object, Object>> put(Object key, Object value, long explicitExpireAt) {
+            return put(key, value, explicitExpireAt, false);
+        }
+
+        /**
+         * @param explicitExpireAt - expiration time of the entry in millis or 0 to use the default expiry.
+         * @param loaded - true if the value was just loaded from the next level, such a value is not returned as
+         *               evicted if it does not fit or is not admitted, its explicit expiration time (the one of the
+         *               next level) is limited by the default one.
+         */
+        synchronized List<Entry<Object, Object>> put(Object key, Object value, long explicitExpireAt, boolean loaded) {
+            final long now = System.currentTimeMillis();
+            expireEntries(now);
+            final LinkedEntry e = index.get(key);
+            if (Expiry.isExpired(explicitExpireAt, now)) {
+                if (e != null)
+                    remove(e);
+                return null;
+            }
+            long deadline = expiry.deadline(now, explicitExpireAt);
+            if (loaded && explicitExpireAt != 0) {
+                final long byDefault = expiry.deadline(now, 0);
+                if (byDefault != 0 && byDefault < deadline)
+                    deadline = byDefault;
+            }
+            final boolean explicitDeadline = explicitExpireAt != 0 && deadline == explicitExpireAt;
+            final long expireAt = expiry.expireAt(now, deadline);
+            final long w = weigher.weigh(key, value);
+            if (w > maxEntryWeight) {
+                if (e != null)
+                    remove(e);
+                return loaded ? null : Collections.singletonList(new SimpleEntry(key, value, expireAt));
+            }
+            if (e != null) {
+                e.setValue(value);
+                onReweigh(e, w);
+                weight += w - e.weight;
+                e.weight = w;
+                e.deadline = deadline;
+                e.explicitDeadline = explicitDeadline;
+                e.expireAt = expireAt;
+                e.writeTime = now;
+                e.refreshing = false;
+                schedule(e);
+                onHit(e);
+                return evictOverweight();
+            }
+
+            // a loaded key was counted by the miss which loaded it
+            if (!loaded)
+                onMiss(key);
+            // admission is decided before any eviction, so a rejected key does not shrink the segment
+            if (weight + w > maxWeight && !admit(key, victim()))
+                return loaded ? null : Collections.singletonList(new SimpleEntry(key, value, expireAt));
+            List<Entry<Object, Object>> evicted = null;
+            while (weight + w > maxWeight) {
+                if (evicted == null)
+                    evicted = new ArrayList<>(1);
+                final LinkedEntry victim = victim();
+                remove(victim);
+                evicted.add(victim);
+            }
+            final LinkedEntry added = new LinkedEntry(key, value);
+            added.weight = w;
+            added.deadline = deadline;
+            added.explicitDeadline = explicitDeadline;
+            added.expireAt = expireAt;
+            added.writeTime = now;
+            index.put(key, added);
+            weight += w;
+            onInsert(added);
+            schedule(added);
+            return evicted;
+        }
+
+        /**
+         * Prolongs an entry which has time-to-idle.
+         */
+        private void touch(LinkedEntry e, long now) {
+            final long expireAt = expiry.expireAt(now, e.deadline);
+            if (expireAt != e.expireAt) {
+                e.expireAt = expireAt;
+                schedule(e);
+            }
+        }
+
+        private void schedule(LinkedEntry e) {
+            if (e.expireAt != 0) {
+                if (wheel == null)
+                    wheel = new TimerWheel(System.currentTimeMillis(), this::remove);
+                wheel.schedule(e);
+            } else if (wheel != null) {
+                wheel.deschedule(e);
+            }
+        }
+
+        private void expireEntries(long now) {
+            if (wheel != null && wheel.size() > 0)
+                wheel.advance(now);
+        }
+
+        /**
+         * Evicts victims until the segment fits into its max weight.
+         */
+        private List<Entry<Object, Object>> evictOverweight() {
+            List<Entry<Object, Object>> evicted = null;
+            while (weight > maxWeight) {
+                if (evicted == null)
+                    evicted = new ArrayList<>(1);
+                final LinkedEntry victim = victim();
+                remove(victim);
+                evicted.add(victim);
+            }
+            return evicted;
+        }
+
+        void remove(LinkedEntry e) {
+            index.remove(e.getKey());
+            weight -= e.weight;
+            onRemove(e);
+            if (wheel != null)
+                wheel.deschedule(e);
+        }
+
+        /**
+         * Called when requested key is absent in this segment and before a new key is inserted.
+         */
+        abstract void onMiss(Object key);
+
+        /**
+         * Called when an existing entry is read or overwritten.
+         */
+        abstract void onHit(LinkedEntry e);
+
+        /**
+         * Called when a new entry is added to the index.
+         */
+        abstract void onInsert(LinkedEntry e);
+
+        /**
+         * Called when an entry is removed from the index.
+         */
+        abstract void onRemove(LinkedEntry e);
+
+        /**
+         * @return - an entry which should be evicted next.
+         */
+        abstract LinkedEntry victim();
+
+        /**
+         * @return - true if a new key should be inserted at the cost of the victim eviction.
+         */
+        abstract boolean admit(Object candidate, LinkedEntry victim);
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private volatile RefreshAhead refresh;
+
+    /**
+     * @param maxWeight - max total weight of entries in this cache
+     * @param weigher - computes weights of entries
+     * @param maxEntryFraction - entries heavier than this fraction of max weight are passed to the next level
+     * @param expiry - default expiration of entries
+     * @param concurrencyLevel - estimated number of concurrently accessing threads, number of segments is the next power
+     *                         of two (but not more than maxWeight)
+     * @param segmentFactory - creates a segment for a given max weight
+     * @param next - next cache level which receives evicted entries
+     */
+    SegmentedMemCache(long maxWeight, Weigher weigher, double maxEntryFraction, Expiry expiry, int concurrencyLevel,
+                      LongFunction<Segment> segmentFactory, Cache next) {
+        super(next);
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("Max weight must be positive.");
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Concurrency level must be positive.");
+        if (maxEntryFraction <= 0 || maxEntryFraction > 1)
+            throw new IllegalArgumentException("Max entry fraction must be in (0, 1].");
+        int n = (int) Math.min(Long.highestOneBit(maxWeight), 1 << 16);
+        while (n > 1 && n >= 2 * concurrencyLevel)
+            n >>>= 1;
+        segments = new Segment[n];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        final long segmentWeight = (maxWeight + n - 1) / n;
+        final long maxEntryWeight = Math.min(segmentWeight, (long) (maxWeight * maxEntryFraction));
+        for (int i = 0; i < n; i++) {
+            segments[i] = segmentFactory.apply(segmentWeight);
+            segments[i].weigher = weigher;
+            segments[i].maxEntryWeight = maxEntryWeight;
+            segments[i].expiry = expiry;
+        }
+    }
+
+    /**
+     * Enables refresh-ahead of entries of this cache.
+     */
+    public void setRefreshAhead(RefreshAhead refresh) {
+        this.refresh = refresh;
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.refreshAfterMillis = refresh.refreshAfterMillis;
+            }
+        }
+    }
+
+    public void saveSnapshot(File file) throws IOException {
+        saveSnapshot(file, new BinarySerializer());
+    }
+
+    /**
+     * Writes keys of this cache (without values) ordered from the hottest to the coldest one into a snapshot file.
+     * @param serializer - serializer of keys
+     */
+    public void saveSnapshot(File file, Serializer serializer) throws IOException {
+        final List<List<Object>> keys = new ArrayList<>(segments.length);
+        final List<List<Integer>> frequencies = new ArrayList<>(segments.length);
+        int total = 0;
+        for (Segment s : segments) {
+            final List<Object> k = new ArrayList<>();
+            final List<Integer> f = new ArrayList<>();
+            s.snapshot(k, f);
+            keys.add(k);
+            frequencies.add(f);
+            total += k.size();
+        }
+        // interleave segments, so a prefix of the snapshot is a hot set of the whole cache
+        final List<byte[]> merged = new ArrayList<>(total);
+        final List<Integer> mergedFrequencies = new ArrayList<>(total);
+        for (int i = 0; merged.size() < total; i++) {
+            for (int j = 0; j < segments.length; j++) {
+                if (i < keys.get(j).size()) {
+                    merged.add(serializer.serialize(keys.get(j).get(i)));
+                    mergedFrequencies.add(frequencies.get(j).get(i));
+                }
+            }
+        }
+        new HotSetSnapshot(merged, mergedFrequencies).write(file);
+    }
+
+    public CompletableFuture<Integer> warmUp(File file) {
+        return warmUp(file, new BinarySerializer(), 100, 4, 10000);
+    }
+
+    /**
+     * Loads values of keys from a snapshot file from the next level and puts them into this cache in background.
+     * Hottest keys are loaded first. Keys put into this cache since the start are not overwritten, entries evicted by
+     * the warm-up itself are dropped (they have just been read from the next level).
+     * @param serializer - serializer of keys
+     * @param batchSize - number of keys requested from the next level at once
+     * @param parallelism - number of concurrently loaded batches
+     * @param maxKeysPerSecond - rate limit of loaded keys, so the next level is not overloaded
+     * @return - future of the number of entries found in the next level.
+     */
+    public CompletableFuture<Integer> warmUp(File file, Serializer serializer, int batchSize, int parallelism,
+                                             int maxKeysPerSecond) {
+        if (batchSize <= 0 || parallelism <= 0 || maxKeysPerSecond <= 0)
+            throw new IllegalArgumentException("Batch size, parallelism and rate must be positive.");
+        final Executor executor = BackgroundExecutor.instance();
+        return CompletableFuture.supplyAsync(() -> {
+            final HotSetSnapshot snapshot;
+            try {
+                snapshot = HotSetSnapshot.read(file);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            final AtomicInteger nextBatch = new AtomicInteger();
+            final AtomicInteger warmed = new AtomicInteger();
+            final long nanosPerKey = TimeUnit.SECONDS.toNanos(1) / maxKeysPerSecond;
+            final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+            final CompletableFuture<?>[] workers = new CompletableFuture<?>[parallelism];
+            for (int w = 0; w < parallelism; w++) {
+                workers[w] = CompletableFuture.runAsync(() -> {
+                    int from;
+                    while ((from = nextBatch.getAndAdd(batchSize)) < snapshot.keys.size()) {
+                        final int to = Math.min(from + batchSize, snapshot.keys.size());
+                        awaitSlot(nextSlot.getAndAdd((to - from) * nanosPerKey));
+                        final Map<Object, Integer> frequencies = new LinkedHashMap<>();
+                        for (int i = from; i < to; i++)
+                            frequencies.put(serializer.deserialize(snapshot.keys.get(i)), snapshot.frequencies.get(i));
+                        warmed.addAndGet(warmUpBatch(frequencies));
+                    }
+                }, executor);
+            }
+            CompletableFuture.allOf(workers).join();
+            return warmed.get();
+        }, executor);
+    }
+
+    private int warmUpBatch(Map<Object, Integer> frequencies) {
+        final Map<Object, Object> loaded = nextLevel.getAll(frequencies.keySet());
+        int warmed = 0;
+        for (Entry<Object, Object> e : loaded.entrySet()) {
+            final List<Entry<Object, Object>> evicted =
+                    segmentFor(e.getKey()).putIfAbsent(e.getKey(), e.getValue(), frequencies.get(e.getKey()));
+            warmed++;
+            if (evicted != null) {
+                final List<Entry<Object, Object>> spilled = new ArrayList<>(evicted.size());
+                for (Entry<Object, Object> ev : evicted) {
+                    if (!loaded.containsKey(ev.getKey()))
+                        spilled.add(ev);
+                }
+                spill(spilled);
+            }
+        }
+        return warmed;
+    }
+
+    private static void awaitSlot(long slot) {
+        long delay;
+        while ((delay = slot - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static int defaultConcurrencyLevel() {
+        return 4 * Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final Segment s = segmentFor(key);
+        final Object val = s.get(key);
+        scheduleRefreshes(s);
+        return val;
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final Segment s = segmentFor(key);
+        final SimpleEntry e = s.getEntry(key);
+        scheduleRefreshes(s);
+        return e;
+    }
+
+    private void scheduleRefreshes(Segment s) {
+        if (s.refreshPending) {
+            for (Object k : s.drainRefreshes()) {
+                try {
+                    refresh.executor.execute(() -> reload(s, k));
+                } catch (RejectedExecutionException e) {
+                    s.refreshFailed(k);
+                }
+            }
+        }
+    }
+
+    private void reload(Segment s, Object key) {
+        Object val = null;
+        try {
+            val = refresh.loader.apply(key);
+        } catch (RuntimeException e) {
+            // keep the old value, a later read retries
+        }
+        if (val == null) {
+            s.refreshFailed(key);
+            return;
+        }
+        // a refresh keeps an explicit TTL, a default one starts again
+        final long deadline = s.explicitDeadline(key);
+        if (deadline == 0) {
+            put(key, val);
+            nextLevel.put(key, val);
+            return;
+        }
+        final long ttl = deadline - System.currentTimeMillis();
+        if (ttl > 0) {
+            put(key, val, ttl, TimeUnit.MILLISECONDS);
+            nextLevel.put(key, val, ttl, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value) {
+        return segmentFor(key).put(key, value, 0);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        return segmentFor(key).put(key, value, expireAt);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> promote_(Object key, Object value, long expireAt) {
+        return segmentFor(key).put(key, value, expireAt, true);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> promoteAll_(Map<?, ?> entries) {
+        List<Entry<Object, Object>> evicted = null;
+        for (Entry<?, ?> e : entries.entrySet()) {
+            final List<Entry<Object, Object>> ev = promote_(e.getKey(), e.getValue(), 0);
+            if (ev != null && ev.size() > 0) {
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.addAll(ev);
+            }
+        }
+        return evicted;
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        return segmentFor(key).invalidate(key);
+    }
+
+    private Segment segmentFor(Object key) {
+        if (segments.length == 1)
+            return segments[0];
+        // Fibonacci hashing, use high bits to not correlate with bucket bits of the segment's hash map
+        final int h = key.hashCode() * 0x9E3779B9;
+        return segments[h >>> segmentShift];
+    }
+}
@@ -0,0 +1,12 @@
+package com.vjache.cache;
+
+/**
+ * Converts keys and values to bytes and back for persistent cache layers. Implementations must be thread safe and
+ * deterministic for keys, i.e. equal keys must be serialized to equal bytes.
+ */
+public interface Serializer {
+
+    byte[] serialize(Object o);
+
+    Object deserialize(byte[] bytes);
+}
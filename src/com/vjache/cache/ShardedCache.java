@@ -0,0 +1,260 @@
+package com.vjache.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * Cache layer which routes keys across independent shards (e.g. {@link MMFileCache}s with roots on different disks),
+ * so its capacity and I/O bandwidth are the sums of those of its shards. A shard has its own files and locks, its next
+ * level is not used, entries evicted from shards are passed to the next level of this cache.
+ *
+ * A key is owned by a shard chosen by rendezvous hashing of the key's hash code (so keys must have a stable hash code
+ * if shards are persistent, like strings and boxed primitives). Shards are identified by their order, which must be
+ * kept between restarts. Adding a shard with {@link #addShard(CacheLayer)} moves ownership of about 1/N of keys to the
+ * new shard and does not touch the data of existing shards. Moved keys are migrated lazily: a miss in the new owner is
+ * looked up in the keys' previous owners, and a put of a moved key removes its copy from the previous owners before it
+ * is written to the new one, so shards which own keys when a shard is added must support removal (see
+ * {@link CacheLayer#remove_(Object)}, memory and file layers of this package do). Previous owners are known only to
+ * the instance which added shards, after a restart not yet moved keys are loaded from the next level again.
+ */
+public class ShardedCache extends CacheLayer implements Closeable {
+
+    private static final int[] NONE = new int[0];
+
+    private volatile CacheLayer[] shards;
+    // numbers of shards before each addition, the latest last
+    private volatile int[] history = new int[0];
+
+    public ShardedCache(List<? extends CacheLayer> shards, Cache next) {
+        super(next);
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("There must be at least one shard.");
+        this.shards = shards.toArray(new CacheLayer[0]);
+    }
+
+    /**
+     * Creates a sharded cache of {@link MMFileCache}s with a shard in each root directory.
+     * @param roots - root directories of shards, e.g. one per disk
+     * @param bucketsNumber - number of buckets of a shard
+     * @param bucketSize - size of a bucket in bytes
+     * @param next - next cache level
+     */
+    public static ShardedCache ofMMFiles(List<File> roots, int bucketsNumber, int bucketSize, Cache next)
+            throws IOException {
+        final List<CacheLayer> shards = new ArrayList<>(roots.size());
+        for (File root : roots)
+            shards.add(new MMFileCache(root, bucketsNumber, bucketSize, new DummyCache()));
+        return new ShardedCache(shards, next);
+    }
+
+    /**
+     * Adds a shard which takes over a share of keys, see the class doc.
+     */
+    public synchronized void addShard(CacheLayer shard) {
+        final CacheLayer[] current = shards;
+        final int[] newHistory = Arrays.copyOf(history, history.length + 1);
+        newHistory[history.length] = current.length;
+        final CacheLayer[] newShards = Arrays.copyOf(current, current.length + 1);
+        newShards[current.length] = shard;
+        history = newHistory;
+        shards = newShards;
+    }
+
+    public int shardsNumber() {
+        return shards.length;
+    }
+
+    @Override
+    protected boolean isBlocking() {
+        for (CacheLayer shard : shards) {
+            if (shard.isBlocking())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected Object get_(Object key) {
+        final CacheLayer[] shards = this.shards;
+        final int hash = key.hashCode();
+        final int owner = owner(hash, shards.length);
+        final Object val = shards[owner].get_(key);
+        if (val != null)
+            return val;
+        for (int prev : previousOwners(hash, owner)) {
+            final Object prevVal = shards[prev].get_(key);
+            if (prevVal != null)
+                return prevVal;
+        }
+        return null;
+    }
+
+    @Override
+    protected SimpleEntry getEntry_(Object key) {
+        final CacheLayer[] shards = this.shards;
+        final int hash = key.hashCode();
+        final int owner = owner(hash, shards.length);
+        final SimpleEntry e = shards[owner].getEntry_(key);
+        if (e != null)
+            return e;
+        for (int prev : previousOwners(hash, owner)) {
+            final SimpleEntry prevEntry = shards[prev].getEntry_(key);
+            if (prevEntry != null)
+                return prevEntry;
+        }
+        return null;
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value) {
+        return put_(key, value, 0);
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> put_(Object key, Object value, long expireAt) {
+        final CacheLayer[] shards = this.shards;
+        final int hash = key.hashCode();
+        final int owner = owner(hash, shards.length);
+        // a previous copy is removed first, so a failure does not leave two different copies
+        for (int prev : previousOwners(hash, owner))
+            shards[prev].remove_(key);
+        return shards[owner].put_(key, value, expireAt);
+    }
+
+    @Override
+    protected boolean remove_(Object key) {
+        final CacheLayer[] shards = this.shards;
+        final int hash = key.hashCode();
+        final int owner = owner(hash, shards.length);
+        boolean removed = shards[owner].remove_(key);
+        for (int prev : previousOwners(hash, owner))
+            removed |= shards[prev].remove_(key);
+        return removed;
+    }
+
+    @Override
+    protected Map<Object, Object> getAll_(Collection<?> keys) {
+        final CacheLayer[] shards = this.shards;
+        final List<List<Object>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            groups.add(new ArrayList<>());
+        for (Object key : keys)
+            groups.get(owner(key.hashCode(), shards.length)).add(key);
+        final Map<Object, Object> found = new HashMap<>();
+        for (int i = 0; i < shards.length; i++) {
+            final List<Object> group = groups.get(i);
+            if (group.isEmpty())
+                continue;
+            found.putAll(shards[i].getAll_(group));
+            if (found.size() < keys.size() && history.length > 0) {
+                for (Object key : group) {
+                    if (!found.containsKey(key)) {
+                        for (int prev : previousOwners(key.hashCode(), i)) {
+                            final Object val = shards[prev].get_(key);
+                            if (val != null) {
+                                found.put(key, val);
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    protected List<Entry<Object, Object>> putAll_(Map<?, ?> entries) {
+        final CacheLayer[] shards = this.shards;
+        final List<Map<Object, Object>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            groups.add(new LinkedHashMap<>());
+        for (Entry<?, ?> e : entries.entrySet())
+            groups.get(owner(e.getKey().hashCode(), shards.length)).put(e.getKey(), e.getValue());
+        List<Entry<Object, Object>> evicted = null;
+        for (int i = 0; i < shards.length; i++) {
+            final Map<Object, Object> group = groups.get(i);
+            if (group.isEmpty())
+                continue;
+            if (history.length > 0) {
+                for (Object key : group.keySet()) {
+                    for (int prev : previousOwners(key.hashCode(), i))
+                        shards[prev].remove_(key);
+                }
+            }
+            final List<Entry<Object, Object>> e = shards[i].putAll_(group);
+            if (e != null && !e.isEmpty()) {
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.addAll(e);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Closes shards which are closeable.
+     */
+    @Override
+    public void close() throws IOException {
+        for (CacheLayer shard : shards) {
+            if (shard instanceof Closeable)
+                ((Closeable) shard).close();
+        }
+    }
+
+    /**
+     * @return - distinct owners of a key before shard additions (newest first) except its current owner.
+     */
+    private int[] previousOwners(int hash, int owner) {
+        final int[] history = this.history;
+        if (history.length == 0)
+            return NONE;
+        final int[] owners = new int[history.length];
+        int n = 0;
+        for (int i = history.length - 1; i >= 0; i--) {
+            final int prev = owner(hash, history[i]);
+            if (prev != owner && indexOf(owners, n, prev) < 0)
+                owners[n++] = prev;
+        }
+        return n == owners.length ? owners : Arrays.copyOf(owners, n);
+    }
+
+    private static int indexOf(int[] values, int n, int value) {
+        for (int i = 0; i < n; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return - shard with the highest weight for a key among the first 'shardsNumber' shards.
+     */
+    static int owner(int hash, int shardsNumber) {
+        int owner = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < shardsNumber; i++) {
+            final long weight = weight(hash, i);
+            if (weight > max) {
+                max = weight;
+                owner = i;
+            }
+        }
+        return owner;
+    }
+
+    private static long weight(int hash, int shard) {
+        // murmur3 finalizer of the key hash combined with the shard number
+        long h = (hash & 0xffffffffL) | ((long) shard << 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
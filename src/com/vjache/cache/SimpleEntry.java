@@ -8,12 +8,19 @@ public class SimpleEntry implements Map.Entry<Object, Object>, Serializable {
 
     private final Object key;
     private Object val;
+    // time in millis when the entry expires, 0 -- never
+    long expireAt;
 
     public SimpleEntry(Object k, Object v) {
         key = k;
         val = v;
     }
 
+    SimpleEntry(Object k, Object v, long expireAt) {
+        this(k, v);
+        this.expireAt = expireAt;
+    }
+
     @Override
     public final Object getKey() {
         return key;
@@ -0,0 +1,74 @@
+package com.vjache.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Deduplicates concurrent loads of the same key: the first thread runs a loader while others wait for its result
+ * (synchronous and asynchronous loads of a key are deduplicated together).
+ * A result (or an exception) is shared by all threads which have been waiting for it, but it is not remembered after
+ * the load is completed.
+ */
+class SingleFlight {
+
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    Object load(Object key, Function<Object, Object> loader) {
+        final CompletableFuture<Object> f = new CompletableFuture<>();
+        final CompletableFuture<Object> running = inFlight.putIfAbsent(key, f);
+        if (running != null)
+            return await(running);
+        try {
+            final Object val = loader.apply(key);
+            f.complete(val);
+            return val;
+        } catch (Throwable t) {
+            f.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, f);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #load(Object, Function)}: the first caller starts a loader, others get the same
+     * future.
+     */
+    CompletableFuture<Object> loadAsync(Object key, Function<Object, CompletableFuture<Object>> loader) {
+        final CompletableFuture<Object> f = new CompletableFuture<>();
+        final CompletableFuture<Object> running = inFlight.putIfAbsent(key, f);
+        if (running != null)
+            return running;
+        try {
+            loader.apply(key).whenComplete((val, t) -> {
+                inFlight.remove(key, f);
+                if (t != null)
+                    f.completeExceptionally(t);
+                else
+                    f.complete(val);
+            });
+        } catch (Throwable t) {
+            inFlight.remove(key, f);
+            f.completeExceptionally(t);
+        }
+        return f;
+    }
+
+    /**
+     * Waits for a future and rethrows an unchecked cause of its failure as is.
+     */
+    static Object await(CompletableFuture<Object> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.vjache.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel of {@link LinkedEntry} nodes ordered by their expiration time. Levels have buckets of
+ * growing time spans (~1s, ~1m, ~1h, ~1.5d, and an overflow bucket), an entry is put into a bucket of the coarsest
+ * level which still resolves its remaining time. Advancing the wheel visits only buckets whose time has passed, their
+ * entries are either expired or cascaded to finer levels. Both scheduling and expiration are O(1) per entry, there is
+ * no scan over all entries. Not thread safe, callers must guard it by their own lock.
+ */
+class TimerWheel {
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    // span of a bucket of a level is 2^SHIFT millis, a level covers the span of a bucket of the next level
+    private static final int[] SHIFT = {10, 16, 22, 27, 29};
+
+    private final LinkedEntry[][] wheel = new LinkedEntry[BUCKETS.length][];
+    private final Consumer<LinkedEntry> onExpire;
+    private long time;
+    private int size = 0;
+
+    /**
+     * @param now - current time in millis
+     * @param onExpire - called for every expired entry after it is removed from the wheel
+     */
+    TimerWheel(long now, Consumer<LinkedEntry> onExpire) {
+        this.time = now;
+        this.onExpire = onExpire;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            wheel[i] = new LinkedEntry[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                final LinkedEntry sentinel = new LinkedEntry(null, null);
+                sentinel.timerPrev = sentinel;
+                sentinel.timerNext = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds an entry with a non zero 'expireAt' to the wheel or moves it to a bucket matching its new 'expireAt'.
+     */
+    void schedule(LinkedEntry e) {
+        if (e.timerNext != null)
+            unlink(e);
+        link(findBucket(e.expireAt), e);
+    }
+
+    void deschedule(LinkedEntry e) {
+        if (e.timerNext != null)
+            unlink(e);
+    }
+
+    /**
+     * Moves the wheel to the given time and expires entries whose time has come.
+     */
+    void advance(long now) {
+        final long prev = time;
+        if (now <= prev)
+            return;
+        time = now;
+        for (int i = 0; i < SHIFT.length; i++) {
+            final long prevTicks = prev >>> SHIFT[i];
+            final long ticks = now >>> SHIFT[i];
+            if (ticks == prevTicks)
+                break;
+            expire(i, prevTicks, ticks - prevTicks);
+        }
+    }
+
+    private void expire(int level, long prevTicks, long delta) {
+        final LinkedEntry[] buckets = wheel[level];
+        final int mask = buckets.length - 1;
+        final int steps = (int) Math.min(delta + 1, buckets.length);
+        for (int i = 0; i < steps; i++) {
+            final LinkedEntry sentinel = buckets[(int) ((prevTicks + i) & mask)];
+            // detach the whole bucket, so entries rescheduled into the same bucket are not visited again
+            LinkedEntry e = sentinel.timerNext;
+            sentinel.timerPrev.timerNext = null;
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+            while (e != null && e != sentinel) {
+                final LinkedEntry next = e.timerNext;
+                e.timerPrev = null;
+                e.timerNext = null;
+                size--;
+                if (e.expireAt <= time)
+                    onExpire.accept(e);
+                else
+                    link(findBucket(e.expireAt), e);
+                e = next;
+            }
+        }
+    }
+
+    private LinkedEntry findBucket(long expireAt) {
+        final long duration = expireAt - time;
+        for (int i = 0; i < BUCKETS.length - 1; i++) {
+            if (duration < 1L << SHIFT[i + 1])
+                return wheel[i][(int) ((expireAt >>> SHIFT[i]) & (BUCKETS[i] - 1))];
+        }
+        return wheel[BUCKETS.length - 1][0];
+    }
+
+    private void link(LinkedEntry sentinel, LinkedEntry e) {
+        e.timerPrev = sentinel.timerPrev;
+        e.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = e;
+        sentinel.timerPrev = e;
+        size++;
+    }
+
+    private void unlink(LinkedEntry e) {
+        e.timerPrev.timerNext = e.timerNext;
+        e.timerNext.timerPrev = e.timerPrev;
+        e.timerPrev = null;
+        e.timerNext = null;
+        size--;
+    }
+}
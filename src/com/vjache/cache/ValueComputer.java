@@ -1,24 +1,113 @@
 package com.vjache.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
- * This is a special kind of cache which is not caches values but computes them.
+ * This is a special kind of cache which is not caches values but computes them. Concurrent requests of the same key
+ * are served by a single computation. An optional bulk function lets a batch of keys to be computed at once e.g. by
+ * one multi-key query. Latencies of computations are recorded as computation latency of its {@link CacheMetrics},
+ * computed values are counted as hits and keys without a value as misses.
  */
 public class ValueComputer extends CacheLayer {
 
     private final Function<Object, Object> func;
+    private final Function<Object, Object> meteredGet = this::getLocal;
+    private final Function<Collection<?>, Map<Object, Object>> bulkFunc;
+    private final SingleFlight computations = new SingleFlight();
 
     protected ValueComputer(Function<Object,Object> func) {
+        this(func, null);
+    }
+
+    /**
+     * @param func - computes a value of a single key
+     * @param bulkFunc - computes values of a batch of keys, returned map may miss keys which have no value
+     */
+    protected ValueComputer(Function<Object,Object> func, Function<Collection<?>, Map<Object, Object>> bulkFunc) {
         super(null);
         this.func = func;
+        this.bulkFunc = bulkFunc;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return computations.load(key, meteredGet);
+    }
+
+    @Override
+    SimpleEntry getEntry(Object key) {
+        return entryOf(key, get(key));
+    }
+
+    @Override
+    CompletableFuture<Object> getEntryAsync(Object key) {
+        return getAsync(key).thenApply(val -> entryOf(key, val));
+    }
+
+    @Override
+    protected boolean isBlocking() {
+        return true;
+    }
+
+    /**
+     * Computes a value on the async executor of this layer.
+     */
+    @Override
+    public CompletableFuture<Object> getAsync(Object key) {
+        return CompletableFuture.supplyAsync(() -> get(key), asyncExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(Object key, Object value, long ttl, TimeUnit unit) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private Object compute(Object key) {
+        final long start = metrics.start();
+        try {
+            return func.apply(key);
+        } finally {
+            metrics.record(metrics.computationLatency, start);
+        }
+    }
+
+    @Override
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        return getAllLocal(keys);
+    }
+
+    @Override
+    public void putAll(Map<?, ?> entries) {}
+
+    @Override
+    protected Map<Object, Object> getAll_(Collection<?> keys) {
+        if (bulkFunc == null)
+            return super.getAll_(keys);
+        final long start = metrics.start();
+        final Map<Object, Object> found;
+        try {
+            found = new HashMap<>(bulkFunc.apply(keys));
+        } finally {
+            metrics.record(metrics.computationLatency, start);
+        }
+        found.values().removeIf(v -> v == null);
+        return found;
     }
 
     @Override
     protected Object get_(Object key) {
-        return func.apply(key);
+        return compute(key);
     }
 
     @Override
@@ -0,0 +1,15 @@
+package com.vjache.cache;
+
+/**
+ * Computes a weight of a cache entry e.g. an approximate number of bytes taken by it. Weight of an entry must not
+ * change while it is in a cache.
+ */
+public interface Weigher {
+
+    /**
+     * Each entry weighs 1, i.e. a max weight is a max number of entries.
+     */
+    Weigher SINGLETON = (key, value) -> 1;
+
+    long weigh(Object key, Object value);
+}
@@ -0,0 +1,215 @@
+package com.vjache.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Write behind wrapper of a (slow, persistent) cache. It is intended to be a next level of a memory cache, so that
+ * evicted entries are spilled to e.g. {@link FileCache} or {@link MMFileCache} asynchronously and the disk latency is
+ * not paid by a thread which puts into the memory cache:
+ *
+ *   new MemCacheMRU(1000, new WriteBehindCache(new FileCache(dir, 1000, new DummyCache()), 8, 10000))
+ *
+ * Keys are distributed over stripes, each stripe has a bounded queue of pending writes and its own writer thread.
+ * Repeated puts of the same key while it is still pending are coalesced into one write of the latest value. Pending
+ * and being written entries are visible to 'get'. When a stripe queue is full 'put' blocks until the writer frees a
+ * room (backpressure). {@link #flush()} waits until everything queued so far is written, {@link #close()} flushes,
+ * stops writers and closes the wrapped cache if it is closeable.
+ *
+ * Pairs put with a TTL are written with their remaining TTL and are not visible or written once expired.
+ *
+ * A write which fails in a writer thread is dropped, the first such failure is rethrown once from the following
+ * 'flush' or 'close'.
+ */
+public class WriteBehindCache implements Cache, Closeable {
+
+    private class Stripe implements Runnable {
+        private final LinkedHashMap<Object, SimpleEntry> pending = new LinkedHashMap<>();
+        private final HashMap<Object, SimpleEntry> writing = new HashMap<>();
+
+        synchronized Object get(Object key) {
+            SimpleEntry e = pending.get(key);
+            if (e == null)
+                e = writing.get(key);
+            return e == null || Expiry.isExpired(e.expireAt, System.currentTimeMillis()) ? null : e.getValue();
+        }
+
+        synchronized void put(Object key, Object value, long expireAt) throws InterruptedException {
+            while (pending.size() >= capacity && !pending.containsKey(key)) {
+                if (closed)
+                    throw new IllegalStateException("Cache is closed.");
+                wait();
+            }
+            pending.put(key, new SimpleEntry(key, value, expireAt));
+            notifyAll();
+        }
+
+        synchronized void flush() throws InterruptedException {
+            while (!pending.isEmpty() || !writing.isEmpty())
+                wait();
+        }
+
+        @Override
+        public void run() {
+            final List<SimpleEntry> batch = new ArrayList<>();
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // only close stops a writer, otherwise queued entries would never be written
+                        }
+                    }
+                    if (pending.isEmpty())
+                        return;
+                    batch.addAll(pending.values());
+                    writing.putAll(pending);
+                    pending.clear();
+                    notifyAll();
+                }
+                try {
+                    for (SimpleEntry e : batch)
+                        write(e);
+                } finally {
+                    synchronized (this) {
+                        for (SimpleEntry e : batch)
+                            writing.remove(e.getKey(), e);
+                        notifyAll();
+                    }
+                    batch.clear();
+                }
+            }
+        }
+
+        private void write(SimpleEntry e) {
+            try {
+                if (e.expireAt == 0)
+                    target.put(e.getKey(), e.getValue());
+                else {
+                    final long ttl = e.expireAt - System.currentTimeMillis();
+                    if (ttl > 0)
+                        target.put(e.getKey(), e.getValue(), ttl, TimeUnit.MILLISECONDS);
+                }
+            } catch (Throwable ex) {
+                // the entry is dropped, a writer must survive any failure or flush and put would wait forever
+                failure.compareAndSet(null, ex);
+            }
+        }
+    }
+
+    private final Cache target;
+    private final int capacity;
+    private final Stripe[] stripes;
+    private final Thread[] writers;
+    private volatile boolean closed = false;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public WriteBehindCache(Cache target) {
+        this(target, 4, 10000);
+    }
+
+    /**
+     * @param target - cache where entries are written to
+     * @param stripes - number of stripes i.e. independent queues and writer threads
+     * @param capacity - max number of pending entries per stripe
+     */
+    public WriteBehindCache(Cache target, int stripes, int capacity) {
+        if (stripes <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("Stripes and capacity must be positive.");
+        this.target = target;
+        this.capacity = capacity;
+        this.stripes = new Stripe[stripes];
+        this.writers = new Thread[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+            writers[i] = new Thread(this.stripes[i], "write-behind-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        final Object val = stripeFor(key).get(key);
+        return val != null ? val : target.get(key);
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        enqueue(key, value, 0);
+    }
+
+    @Override
+    public void put(Object key, Object value, long ttl, TimeUnit unit) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("TTL must be positive.");
+        enqueue(key, value, System.currentTimeMillis() + unit.toMillis(ttl));
+    }
+
+    private void enqueue(Object key, Object value, long expireAt) {
+        if (closed)
+            throw new IllegalStateException("Cache is closed.");
+        try {
+            stripeFor(key).put(key, value, expireAt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits until all entries queued before this call are written to the target cache. Throws the first failure of a
+     * write since the previous report of a failure, if any.
+     */
+    public void flush() {
+        try {
+            for (Stripe s : stripes)
+                s.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        final Throwable f = failure.getAndSet(null);
+        if (f instanceof RuntimeException)
+            throw (RuntimeException) f;
+        if (f instanceof Error)
+            throw (Error) f;
+        if (f != null)
+            throw new RuntimeException(f);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (Stripe s : stripes) {
+                synchronized (s) {
+                    s.notifyAll();
+                }
+            }
+            for (Thread t : writers) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (target instanceof Closeable)
+                ((Closeable) target).close();
+        }
+    }
+
+    private Stripe stripeFor(Object key) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length)];
+    }
+}
@@ -3,9 +3,32 @@ package com.vjache.cache;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -56,6 +79,24 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void minValueHashCodeTest() throws IOException {
+        // both keys have Integer.MIN_VALUE hash codes, of an object and of serialized bytes respectively
+        final Long key = 2147483648L;
+        final byte[] bytesKey = {0, 2, -4, 4, -8, -8, -1, -12};
+        assertEquals(Integer.MIN_VALUE, key.hashCode());
+        assertEquals(Integer.MIN_VALUE, Arrays.hashCode(new BinarySerializer().serialize(bytesKey)));
+
+        final FileCache files = new FileCache(new File(CACHE_DIR, "minHash"), 10, new DummyCache());
+        files.put(key, "v");
+        assertEquals("v", files.get(key));
+        final MMFileCache mm = new MMFileCache(new File(CACHE_DIR, "mmMinHash"), 10, 64 * 1024, new DummyCache());
+        mm.put(bytesKey, "v");
+        assertEquals("v", mm.get(bytesKey.clone()));
+        files.close();
+        mm.close();
+    }
+
     @Test
     public void mmFileCacheTest() throws IOException {
         final Cache cache = new MMFileCache(new File("./cache/mmCache"), new DummyCache());
@@ -78,6 +119,587 @@ public class CacheTest {
 
     }
 
+    @Test
+    public void mmFileCacheIndexTest() throws IOException {
+        final File dir = new File(CACHE_DIR, "mmIndexCache");
+        final Cache cache = new MMFileCache(dir, 32, 8 * 1024, new DummyCache());
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // rewriting the same keys over and over makes buckets to drop dead records
+        for(int n = 0; n < 50; n++) {
+            for(int i = 0; i< AMOUNT / 10; i += 10) {
+                cache.put("key" + i, "value" + i + "_" + n);
+            }
+        }
+        assertNull(cache.get("absent"));
+
+        // index and write cursors are persisted, so data is found after a clean restart without a scan
+        ((MMFileCache) cache).close();
+        final Cache restarted = new MMFileCache(dir, 32, 8 * 1024, new DummyCache());
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            assertEquals("value" + i + (i % 10 == 0 ? "_49" : ""), restarted.get("key" + i));
+        }
+        restarted.put("key" + AMOUNT, "value" + AMOUNT);
+        assertEquals("value" + AMOUNT, restarted.get("key" + AMOUNT));
+    }
+
+    @Test
+    public void mmFileCacheRecoveryTest() throws IOException {
+        final File dir = new File(CACHE_DIR, "mmRecovery");
+        final MMFileCache cache = new MMFileCache(dir, 4, 64 * 1024, 256, 1, new BinarySerializer(),
+                MMFileCache.Durability.PER_WRITE, 0, TimeUnit.SECONDS, new DummyCache());
+        for(int i = 0; i< 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        // the process is killed without close and a record of the first bucket is damaged
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "_4_65536"), "rw")) {
+            f.seek(200);
+            f.write(~f.read());
+        }
+        final Cache recovered = new MMFileCache(dir, 4, 64 * 1024, 256, new BinarySerializer(), new DummyCache());
+        int found = 0;
+        for(int i = 0; i< 100; i++) {
+            final Object val = recovered.get("key" + i);
+            if (val != null) {
+                assertEquals("value" + i, val);
+                found++;
+            }
+        }
+        // only the damaged bucket is cut at the broken record
+        assertTrue(found >= 75 && found < 100);
+        recovered.put("key0", "value0");
+        assertEquals("value0", recovered.get("key0"));
+
+        // a torn compaction leaves an old live copy of a key ahead of the new one, recovery keeps the newest
+        final File tornDir = new File(CACHE_DIR, "mmTornCompaction");
+        final MMFileCache torn = new MMFileCache(tornDir, 1, 64 * 1024, 256, 1, new BinarySerializer(),
+                MMFileCache.Durability.PER_WRITE, 0, TimeUnit.SECONDS, new DummyCache());
+        torn.put("key", "old");
+        torn.put("key", "new");
+        try (RandomAccessFile f = new RandomAccessFile(new File(tornDir, "_1_65536"), "rw")) {
+            // the valid flag is not covered by the checksum
+            f.seek(0);
+            assertEquals(2, f.read());
+            f.seek(0);
+            f.write(1);
+        }
+        final MMFileCache tornRecovered = new MMFileCache(tornDir, 1, 64 * 1024, 256, new BinarySerializer(),
+                new DummyCache());
+        assertEquals("new", tornRecovered.get("key"));
+        tornRecovered.put("key2", "value2");
+        tornRecovered.close();
+        // a write after a clean shutdown mark would not be recovered after a crash
+        try {
+            tornRecovered.put("key3", "value3");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("value2", tornRecovered.get("key2"));
+        final Cache reopened = new MMFileCache(tornDir, 1, 64 * 1024, 256, new BinarySerializer(), new DummyCache());
+        assertEquals("new", reopened.get("key"));
+        assertEquals("value2", reopened.get("key2"));
+    }
+
+    @Test
+    public void compressingSerializerTest() throws IOException {
+        final List<String> docs = new ArrayList<>();
+        final Random rnd = new Random(1);
+        for (int i = 0; i < 300; i++)
+            docs.add("{\"id\":" + i + ",\"name\":\"user" + rnd.nextInt(1000) + "\",\"status\":\"active\","
+                    + "\"roles\":[\"reader\",\"writer\"],\"created\":\"2020-01-0" + rnd.nextInt(10) + "\"}");
+        final StringBuilder text = new StringBuilder();
+        for (String doc : docs)
+            text.append(doc).append('\n');
+        final byte[] noise = new byte[4096];
+        rnd.nextBytes(noise);
+
+        final BinarySerializer binary = new BinarySerializer();
+        final CompressingSerializer plain = new CompressingSerializer(binary);
+        for (Object value : new Object[]{"", "short", text.toString(), 42L, docs.get(0)})
+            assertEquals(value, plain.deserialize(plain.serialize(value)));
+        assertArrayEquals(noise, (byte[]) plain.deserialize(plain.serialize(noise)));
+        assertTrue(plain.serialize(text.toString()).length * 4 < binary.serialize(text.toString()).length);
+        // small and incompressible records are stored as is with a one byte flag
+        assertEquals(binary.serialize("short").length + 1, plain.serialize("short").length);
+        assertEquals(noise.length + 2, plain.serialize(noise).length);
+
+        // a dictionary helps small documents which share structure
+        final byte[] dictionary = CompressingSerializer.trainDictionary(binary, docs.subList(0, 200), 4096);
+        final CompressingSerializer trained = new CompressingSerializer(binary, 16, dictionary);
+        int plainBytes = 0, trainedBytes = 0;
+        for (String doc : docs.subList(200, 300)) {
+            assertEquals(doc, trained.deserialize(trained.serialize(doc)));
+            plainBytes += plain.serialize(doc).length;
+            trainedBytes += trained.serialize(doc).length;
+        }
+        assertTrue(trainedBytes * 2 < plainBytes);
+
+        // persistent layers store compressed records
+        final FileCache files = new FileCache(new File(CACHE_DIR, "compressed"), 10, trained, new DummyCache());
+        final MMFileCache mm = new MMFileCache(new File(CACHE_DIR, "mmCompressed"), 4, 64 * 1024, 256,
+                trained, new DummyCache());
+        for (int i = 0; i < docs.size(); i++) {
+            files.put(i, docs.get(i));
+            mm.put(i, docs.get(i));
+        }
+        for (int i = 0; i < docs.size(); i++) {
+            assertEquals(docs.get(i), files.get(i));
+            assertEquals(docs.get(i), mm.get(i));
+        }
+        files.close();
+        mm.close();
+    }
+
+    @Test
+    public void mmFileCacheZeroCopyTest() throws Exception {
+        final BinarySerializer serializer = new BinarySerializer();
+        final MMFileCache cache = new MMFileCache(new File(CACHE_DIR, "mmZeroCopy"), 4, 64 * 1024, 256, serializer,
+                new DummyCache());
+        final byte[] blob = new byte[1000];
+        new Random(1).nextBytes(blob);
+        cache.put("blob", blob);
+        final byte[] stored = serializer.serialize(blob);
+
+        try (MMFileCache.Lease lease = cache.lease("blob")) {
+            final ByteBuffer value = lease.value();
+            assertTrue(value.isReadOnly());
+            final byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            assertArrayEquals(stored, bytes);
+        }
+        assertNull(cache.lease("absent"));
+
+        final ByteBuffer dst = ByteBuffer.allocateDirect(2000);
+        assertEquals(stored.length, cache.copyTo("blob", dst));
+        assertEquals(-1, cache.copyTo("absent", dst));
+        try {
+            cache.copyTo("blob", ByteBuffer.allocate(10));
+            fail();
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(cache.transferTo("blob", Channels.newChannel(out)));
+        assertArrayEquals(stored, out.toByteArray());
+
+        // an overwrite waits until the lease of the record is closed
+        final MMFileCache.Lease lease = cache.lease("blob");
+        final Thread writer = new Thread(() -> cache.put("blob", "other"));
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        assertEquals(stored.length, lease.value().remaining());
+        lease.close();
+        writer.join();
+        assertEquals("other", cache.get("blob"));
+        cache.close();
+    }
+
+    @Test
+    public void bloomFilterAndNegativeCacheTest() throws IOException, InterruptedException {
+        final BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.put(("key" + i).hashCode());
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(("key" + i).hashCode()));
+            if (filter.mightContain(("absent" + i).hashCode()))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 50);
+
+        // filters survive a clean reopen of the file layers
+        final File mmDir = new File(CACHE_DIR, "mmBloom");
+        MMFileCache mm = new MMFileCache(mmDir, 4, 64 * 1024, new DummyCache());
+        for (int i = 0; i < 500; i++)
+            mm.put("key" + i, "value" + i);
+        assertNull(mm.get("absent"));
+        mm.close();
+        assertTrue(new File(mmDir, "_4_65536.bloom").exists());
+        mm = new MMFileCache(mmDir, 4, 64 * 1024, new DummyCache());
+        for (int i = 0; i < 500; i++)
+            assertEquals("value" + i, mm.get("key" + i));
+        assertNull(mm.get("absent"));
+        mm.close();
+
+        final File fileDir = new File(CACHE_DIR, "fileBloom");
+        FileCache files = new FileCache(fileDir, 10, new DummyCache());
+        for (int i = 0; i < 100; i++)
+            files.put("key" + i, "value" + i);
+        files.close();
+        files = new FileCache(fileDir, 10, new DummyCache());
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, files.get("key" + i));
+        assertNull(files.get("absent"));
+        files.put("late", "late_value");
+        assertEquals("late_value", files.get("late"));
+
+        // a key which makes a filter full is found in the filter rebuilt from bucket files
+        final FileCache single = new FileCache(new File(CACHE_DIR, "fileBloomRebuild"), 1, new DummyCache());
+        for (int i = 0; i < 600; i++) {
+            single.put("k" + i, "v" + i);
+            assertEquals("v" + i, single.get("k" + i));
+        }
+
+        // absent keys are answered without reaching the computer until a put or expiration
+        final AtomicInteger computations = new AtomicInteger();
+        final NegativeCache negative = new NegativeCache(1, TimeUnit.HOURS, 100, new ValueComputer(o -> {
+            computations.incrementAndGet();
+            return o.toString().startsWith("known") ? o + "_value" : null;
+        }));
+        for (int i = 0; i < 10; i++)
+            assertNull(negative.get("unknown"));
+        assertEquals(1, computations.get());
+        assertEquals("known_value", negative.get("known"));
+        assertEquals(9, negative.metrics().getHits());
+        final Map<Object, Object> found = negative.getAll(Arrays.asList("unknown", "known1", "other"));
+        assertEquals(1, found.size());
+        assertEquals(4, computations.get());
+        assertNull(negative.get("other"));
+        assertEquals(4, computations.get());
+
+        // a put which completes while a lookup of the key is in flight is not hidden by the lookup
+        final ConcurrentMemCacheMRU store = new ConcurrentMemCacheMRU(10, 1, new DummyCache());
+        final CountDownLatch looked = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final NegativeCache racing = new NegativeCache(1, TimeUnit.HOURS, 100, new Cache() {
+            @Override
+            public Object get(Object key) {
+                final Object val = store.get(key);
+                looked.countDown();
+                try {
+                    written.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return val;
+            }
+
+            @Override
+            public void put(Object key, Object value) {
+                store.put(key, value);
+            }
+        });
+        final AtomicReference<Object> seen = new AtomicReference<>("not read");
+        final Thread reader = new Thread(() -> seen.set(racing.get("k")));
+        reader.start();
+        looked.await();
+        racing.put("k", "v");
+        written.countDown();
+        reader.join();
+        assertNull(seen.get());
+        assertEquals("v", racing.get("k"));
+    }
+
+    @Test
+    public void shardedCacheTest() throws IOException {
+        final List<File> roots = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            roots.add(new File(CACHE_DIR, "shard" + i));
+        final ShardedCache cache = ShardedCache.ofMMFiles(roots, 4, 256 * 1024, new DummyCache());
+        for (int i = 0; i < 1000; i++)
+            cache.put("key" + i, "value" + i);
+
+        final MMFileCache added = new MMFileCache(new File(CACHE_DIR, "shard2"), 4, 256 * 1024, new DummyCache());
+        cache.addShard(added);
+        assertEquals(3, cache.shardsNumber());
+        // moved keys are still found in their previous shards
+        for (int i = 0; i < 1000; i++)
+            assertEquals("value" + i, cache.get("key" + i));
+        assertNull(added.get_("key0"));
+
+        // a put moves a key to its new shard
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, "new" + i);
+            if (added.get_("key" + i) != null)
+                moved++;
+            assertEquals("new" + i, cache.get("key" + i));
+        }
+        assertTrue(moved > 200 && moved < 470);
+        cache.close();
+    }
+
+    @Test
+    public void shardedFileLayersTest() throws IOException {
+        for (int layer = 0; layer < 3; layer++) {
+            final List<CacheLayer> shards = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                final File root = new File(CACHE_DIR, "layer" + layer + "shard" + i);
+                shards.add(layer == 0 ? new FileCache(root, 4, new DummyCache())
+                        : layer == 1 ? new PackFileCache(root, 4, new DummyCache())
+                        : new LogFileCache(root, new DummyCache()));
+            }
+            final ShardedCache cache = new ShardedCache(shards, new DummyCache());
+            for (int i = 0; i < 100; i++)
+                cache.put("key" + i, "value" + i);
+            cache.addShard(new MMFileCache(new File(CACHE_DIR, "layer" + layer + "added"), 4, 64 * 1024,
+                    new DummyCache()));
+
+            // a moved key is removed from its previous owner
+            for (int i = 0; i < 100; i++) {
+                cache.put("key" + i, "new" + i);
+                assertEquals("new" + i, cache.get("key" + i));
+                int copies = 0;
+                for (CacheLayer shard : shards) {
+                    if (shard.get_("key" + i) != null)
+                        copies++;
+                }
+                assertTrue(copies <= 1);
+            }
+            cache.close();
+        }
+
+        // removals of log structured layers survive a restart
+        final File packRoot = new File(CACHE_DIR, "layer1shard0");
+        final File logRoot = new File(CACHE_DIR, "layer2shard0");
+        final PackFileCache pack = new PackFileCache(packRoot, 4, new DummyCache());
+        final LogFileCache log = new LogFileCache(logRoot, new DummyCache());
+        pack.put("removed", "value");
+        log.put("removed", "value");
+        assertTrue(pack.remove_("removed"));
+        assertTrue(log.remove_("removed"));
+        assertFalse(pack.remove_("removed"));
+        log.close();
+        final LogFileCache reopenedLog = new LogFileCache(logRoot, new DummyCache());
+        assertNull(reopenedLog.get_("removed"));
+        reopenedLog.close();
+        // the pack is reopened without its index, so removal is replayed from the pack itself
+        final PackFileCache reopenedPack = new PackFileCache(packRoot, 4, new DummyCache());
+        assertNull(reopenedPack.get_("removed"));
+        reopenedPack.close();
+        pack.close();
+    }
+
+    @Test
+    public void writeBehindCacheTest() throws IOException {
+        final FileCache l2 = new FileCache(new File(CACHE_DIR), 100, new DummyCache());
+        final WriteBehindCache writeBehind = new WriteBehindCache(l2, 4, 100);
+        final Cache cache = new ConcurrentMemCacheMRU(10, 1, writeBehind);
+
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // spilled entries are visible while they are queued
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+
+        writeBehind.close();
+        for(int i = 0; i< AMOUNT / 10 - 10; i++) {
+            assertEquals("value" + i, l2.get("key" + i));
+        }
+
+        // a failed write, even by an Error, is reported once and does not stop a writer
+        final ConcurrentMemCacheMRU target = new ConcurrentMemCacheMRU(100, 1, new DummyCache());
+        final WriteBehindCache failing = new WriteBehindCache(new Cache() {
+            @Override
+            public Object get(Object key) {
+                return target.get(key);
+            }
+
+            @Override
+            public void put(Object key, Object value) {
+                if (key.equals("bad"))
+                    throw new AssertionError("bad");
+                target.put(key, value);
+            }
+        }, 1, 2);
+        failing.put("bad", "value");
+        try {
+            failing.flush();
+            fail();
+        } catch (AssertionError e) {
+            assertEquals("bad", e.getMessage());
+        }
+        for (int i = 0; i < 10; i++)
+            failing.put("key" + i, "value" + i);
+        failing.flush();
+        assertEquals("value9", target.get("key9"));
+        failing.close();
+    }
+
+    @Test
+    public void concurrentFileCachesTest() throws IOException, InterruptedException {
+        final Cache[] caches = {
+                new FileCache(new File(CACHE_DIR), 200, new DummyCache()),
+                new MMFileCache(new File(CACHE_DIR, "mmConcurrentCache"), 16, 256 * 1024, new DummyCache())};
+        for (Cache cache : caches) {
+            final AtomicInteger errors = new AtomicInteger();
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t * AMOUNT / 10;
+                threads[t] = new Thread(() -> {
+                    try {
+                        for (int n = 0; n < 3; n++) {
+                            for (int i = offset; i < offset + AMOUNT / 10; i++) {
+                                cache.put("key" + i, "value" + i + "_" + n);
+                                if (!("value" + i + "_" + n).equals(cache.get("key" + i)))
+                                    errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread t : threads)
+                t.join();
+            assertEquals(0, errors.get());
+        }
+    }
+
+    @Test
+    public void packFileCacheTest() throws IOException {
+        final File dir = new File(CACHE_DIR, "packCache");
+        try (PackFileCache cache = new PackFileCache(dir, 10, new DummyCache())) {
+            for(int n = 0; n < 5; n++) {
+                for(int i = 0; i< AMOUNT; i++) {
+                    cache.put("key" + i, "value" + i + "_" + n);
+                }
+            }
+            for(int i = 0; i< AMOUNT; i++) {
+                assertEquals("value" + i + "_4", cache.get("key" + i));
+            }
+        }
+
+        // indexes were saved on close, records appended later are replayed from packs
+        final PackFileCache cache = new PackFileCache(dir, 10, new DummyCache());
+        for(int i = 0; i< AMOUNT; i++) {
+            assertEquals("value" + i + "_4", cache.get("key" + i));
+        }
+        cache.put("key0", "value0_5");
+        assertEquals("value0_5", new PackFileCache(dir, 10, new DummyCache()).get("key0"));
+        cache.close();
+    }
+
+    @Test
+    public void logFileCacheTest() throws IOException {
+        final File dir = new File(CACHE_DIR, "logCache");
+        try (LogFileCache cache = new LogFileCache(dir, 64 * 1024, 0.5, 1, TimeUnit.HOURS, new DummyCache())) {
+            for (int i = 0; i < AMOUNT; i++) {
+                cache.put("key" + i, "value" + i);
+            }
+            // overwrite a half of keys to produce garbage in sealed segments
+            for (int i = 0; i < AMOUNT; i += 2) {
+                cache.put("key" + i, "value" + i + "_2");
+            }
+            cache.compact();
+            for (int i = 0; i < AMOUNT; i++) {
+                assertEquals("value" + i + (i % 2 == 0 ? "_2" : ""), cache.get("key" + i));
+            }
+        }
+
+        // index is rebuilt from segments on restart
+        try (LogFileCache cache = new LogFileCache(dir, 64 * 1024, 0.5, 1, TimeUnit.HOURS, new DummyCache())) {
+            for (int i = 0; i < AMOUNT; i++) {
+                assertEquals("value" + i + (i % 2 == 0 ? "_2" : ""), cache.get("key" + i));
+            }
+        }
+    }
+
+    @Test
+    public void logFileCacheLimitsTest() throws IOException, InterruptedException {
+        // the oldest segments are dropped above max bytes, their pairs go to the next level
+        final File cappedDir = new File(CACHE_DIR, "cappedLogCache");
+        final Cache next = new ConcurrentMemCacheMRU(2 * AMOUNT, new DummyCache());
+        try (LogFileCache cache = new LogFileCache(cappedDir, 128 * 1024, 16 * 1024, 0.5, 1, TimeUnit.HOURS,
+                new BinarySerializer(), next)) {
+            for (int i = 0; i < AMOUNT; i++) {
+                cache.put("key" + i, "value" + i);
+            }
+            long total = 0;
+            for (File f : cappedDir.listFiles())
+                total += f.length();
+            assertTrue(total <= 128 * 1024);
+            assertEquals("value0", next.get("key0"));
+            for (int i = 0; i < AMOUNT; i++) {
+                assertEquals("value" + i, cache.get("key" + i));
+            }
+        }
+
+        // replay stops at a corrupted record
+        final File dir = new File(CACHE_DIR, "corruptedLogCache");
+        try (LogFileCache cache = new LogFileCache(dir, new DummyCache())) {
+            for (int i = 0; i < 100; i++) {
+                cache.put("key" + i, "value" + i);
+            }
+        }
+        final File segment = new File(dir, "_0.log");
+        final long length = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(length / 2);
+            final int b = raf.read();
+            raf.seek(length / 2);
+            raf.write(b ^ 0xFF);
+        }
+        try (LogFileCache cache = new LogFileCache(dir, new DummyCache())) {
+            assertEquals("value0", cache.get("key0"));
+            assertNull(cache.get("key50"));
+            assertNull(cache.get("key99"));
+            assertTrue(segment.length() < length / 2);
+        }
+
+        // an expired record dropped by compaction does not bring back an older one after a restart
+        final File expiringDir = new File(CACHE_DIR, "expiringLogCache");
+        try (LogFileCache cache = new LogFileCache(expiringDir, 1024, 0.5, 1, TimeUnit.HOURS, new DummyCache())) {
+            cache.put("k", "old");
+            for (int i = 0; i < 30; i++)
+                cache.put("a" + i, "value" + i);
+            cache.put("k", "new", 1, TimeUnit.MILLISECONDS);
+            for (int n = 0; n < 2; n++) {
+                for (int i = 0; i < 30; i++)
+                    cache.put("b" + i, "value" + i + "_" + n);
+            }
+            Thread.sleep(10);
+            cache.compact();
+        }
+        try (LogFileCache cache = new LogFileCache(expiringDir, 1024, 0.5, 1, TimeUnit.HOURS, new DummyCache())) {
+            assertNull(cache.get("k"));
+            assertEquals("value0", cache.get("a0"));
+        }
+
+        // an interrupted reader does not close files for others
+        final File packDir = new File(CACHE_DIR, "interruptedPackCache");
+        try (LogFileCache log = new LogFileCache(dir, new DummyCache());
+             PackFileCache pack = new PackFileCache(packDir, 10, new DummyCache())) {
+            pack.put("key0", "value0");
+            Thread.currentThread().interrupt();
+            assertEquals("value0", log.get("key0"));
+            assertTrue(Thread.currentThread().isInterrupted());
+            assertEquals("value0", pack.get("key0"));
+            assertTrue(Thread.interrupted());
+            assertEquals("value1", log.get("key1"));
+            assertEquals("value0", pack.get("key0"));
+        }
+    }
+
+    @Test
+    public void binarySerializerTest() {
+        final BinarySerializer serializer = new BinarySerializer().register(32, File.class, new Codec<File>() {
+            @Override
+            public byte[] encode(File value) {
+                return value.getPath().getBytes();
+            }
+
+            @Override
+            public File decode(byte[] bytes, int offset, int length) {
+                return new File(new String(bytes, offset, length));
+            }
+        });
+        final Object[] objects = {null, "str", "", 1, 2L, (short) 3, (byte) 4, 5.0, 6.0f, '7', true,
+                new File("a/b"), new java.util.ArrayList<>(java.util.Arrays.asList(1, "2"))};
+        for (Object o : objects) {
+            assertEquals(o, serializer.deserialize(serializer.serialize(o)));
+        }
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) serializer.deserialize(serializer.serialize(new byte[]{1, 2})));
+    }
+
     @Test
     public void memCacheFreqBased() {
         final Cache cache = new MemCacheMFU((int) (AMOUNT*1.5), 1.5, new DummyCache());
@@ -106,6 +728,394 @@ public class CacheTest {
 
     }
 
+    @Test
+    public void concurrentMemCacheMRUTest() throws InterruptedException {
+        final Cache l2 = new ConcurrentMemCacheMRU(2 * AMOUNT, new DummyCache());
+        final Cache cache = new ConcurrentMemCacheMRU(AMOUNT / 10, 1, l2);
+
+        for(int i = 0; i< AMOUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        // Least recently used keys are spilled to the second level and promoted back on request
+        for(int i = 0; i< AMOUNT; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+
+        final Thread[] threads = new Thread[8];
+        final Cache shared = new ConcurrentMemCacheMRU(2 * threads.length * AMOUNT, 16, new DummyCache());
+        final AtomicInteger misses = new AtomicInteger();
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * AMOUNT;
+            threads[t] = new Thread(() -> {
+                for(int i = offset; i< offset + AMOUNT; i++) {
+                    shared.put("key" + i, "value" + i);
+                    if (!("value" + i).equals(shared.get("key" + i)))
+                        misses.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, misses.get());
+    }
+
+    @Test
+    public void concurrentMemCacheMFUTest() {
+        final Cache cache = new ConcurrentMemCacheMFU(AMOUNT, 1, new DummyCache());
+        for(int i = 0; i< AMOUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        for(int i = 0; i< AMOUNT; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+
+        // A scan of cold keys must not wash out frequently used ones
+        for(int i = AMOUNT; i< 4*AMOUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        int hits = 0;
+        for(int i = 0; i< AMOUNT; i++) {
+            if (("value" + i).equals(cache.get("key" + i)))
+                hits ++;
+        }
+        assertTrue(hits > AMOUNT * 0.9);
+
+        final Map<Object, Object> below = new HashMap<>();
+        final List<Object> spilled = new ArrayList<>();
+        final Cache recording = new Cache() {
+            @Override
+            public Object get(Object key) {
+                return below.get(key);
+            }
+
+            @Override
+            public void put(Object key, Object value) {
+                spilled.add(key);
+                below.put(key, value);
+            }
+        };
+        final StringBuilder value = new StringBuilder();
+        for(int i = 0; i< 200; i++) {
+            value.append('x');
+        }
+        final Cache weighed = new ConcurrentMemCacheMFU(1000, (k, v) -> ((String) v).length(), 0.5, 1, recording);
+        for (String key : new String[]{"a", "b", "c", "d", "e"}) {
+            weighed.put(key, value.toString());
+        }
+        for (int n = 0; n < 3; n++) {
+            for (String key : new String[]{"a", "c", "d", "e"}) {
+                weighed.get(key);
+            }
+        }
+        // a key read through is counted once, so it is as cold as the victim "b" and is not admitted, nor is it
+        // written back to the level it came from
+        below.put("p", value.toString());
+        assertEquals(value.toString(), weighed.get("p"));
+        assertTrue(spilled.isEmpty());
+
+        // admission is decided by the first victim before anything is evicted
+        weighed.get("n");
+        weighed.put("n", value.toString() + value);
+        assertEquals(Arrays.asList("b", "a"), spilled);
+    }
+
+    @Test
+    public void longKeyCacheTest() throws InterruptedException {
+        final ConcurrentMemCacheMRU l2 = new ConcurrentMemCacheMRU(AMOUNT, 1, new DummyCache());
+        final LongKeyCache cache = new LongKeyCache(1000, 4, l2);
+        for (long i = 0; i < 2000; i++)
+            cache.put(i * 1024, "value" + i);
+        // evicted entries are spilled with boxed keys and come back on access
+        int spilled = 0;
+        for (long i = 0; i < 2000; i++) {
+            if (l2.get(i * 1024) != null)
+                spilled++;
+        }
+        assertEquals(1000, spilled);
+        for (long i = 0; i < 2000; i++)
+            assertEquals("value" + i, cache.get(i * 1024));
+        assertEquals("value7", cache.get((Object) (7L * 1024)));
+        cache.put(7L * 1024, "other");
+        assertEquals("other", cache.get(7L * 1024));
+        try {
+            cache.get("7");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // keys accessed between evictions survive a scan of new keys
+        final LongKeyCache clock = new LongKeyCache(100, 1, new DummyCache());
+        for (long i = 0; i < 100; i++)
+            clock.put(i, Long.valueOf(i));
+        for (long i = 1000; i < 1200; i++) {
+            for (long hot = 0; hot < 10; hot++)
+                assertEquals(hot, clock.get(hot));
+            clock.put(i, Long.valueOf(i));
+        }
+        for (long hot = 0; hot < 10; hot++)
+            assertEquals(hot, clock.get(hot));
+
+        // keys of all threads fit into both levels, so every key is found, failures of threads are counted
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = t * 100000L;
+            threads[t] = new Thread(() -> {
+                for (long i = base; i < base + 1500; i++) {
+                    cache.put(i, Long.valueOf(i));
+                    if (!Long.valueOf(i).equals(cache.get(i)))
+                        failures.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void wTinyLFUCacheTest() {
+        final List<Object> spilled = new ArrayList<>();
+        final Cache cache = new ConcurrentMemCacheWTinyLFU(1000, 1, new DummyCache() {
+            @Override
+            public void put(Object key, Object value) {
+                spilled.add(key);
+            }
+        });
+        for(int i = 0; i< 1000; i++) {
+            cache.put("key" + i, "value" + i);
+            cache.get("key" + i);
+            cache.get("key" + i);
+        }
+
+        // A scan of cold keys must not wash out frequently used ones, rejected keys go to the next level
+        for(int i = 1000; i< 4000; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        int hits = 0;
+        for(int i = 0; i< 1000; i++) {
+            if (("value" + i).equals(cache.get("key" + i)))
+                hits ++;
+        }
+        assertTrue(hits > 900);
+        assertTrue(spilled.size() >= 3000);
+
+        // a new hot set replaces the old one
+        for (int round = 0; round < 12; round++) {
+            hits = 0;
+            for (int i = 5000; i < 5800; i++) {
+                if (cache.get("key" + i) != null)
+                    hits++;
+                else
+                    cache.put("key" + i, "value" + i);
+            }
+        }
+        assertTrue(hits > 700);
+    }
+
+    @Test
+    public void offHeapMemCacheTest() {
+        final Cache l2 = new ConcurrentMemCacheMRU(10 * AMOUNT, new DummyCache());
+        final Cache cache = new OffHeapMemCache(64 * 1024, 4096, 2, new BinarySerializer(), l2);
+
+        final StringBuilder big = new StringBuilder();
+        for(int i = 0; i< 300; i++) {
+            big.append('x');
+        }
+        for(int i = 0; i< AMOUNT; i++) {
+            // mix of size classes makes pages to move between classes
+            cache.put("key" + i, (i / 1000 % 2 == 0 ? "value" : big.toString()) + i);
+        }
+        for(int i = 0; i< AMOUNT; i++) {
+            assertEquals((i / 1000 % 2 == 0 ? "value" : big.toString()) + i, cache.get("key" + i));
+        }
+
+        // an entry bigger than a page goes directly to the next level
+        final byte[] huge = new byte[8192];
+        cache.put("huge", huge);
+        assertArrayEquals(huge, (byte[]) l2.get("huge"));
+    }
+
+    @Test
+    public void weighedCachesTest() throws IOException {
+        final ConcurrentMemCacheMRU l3 = new ConcurrentMemCacheMRU(10 * AMOUNT, new DummyCache());
+        final MMFileCache l2 = new MMFileCache(new File(CACHE_DIR, "mmWeighed"), 4, 4 * 1024, 64, 0.1,
+                new BinarySerializer(), l3);
+        final Cache cache = new ConcurrentMemCacheMFU(1000, (k, v) -> ((String) v).length(), 0.1, 1, l2);
+
+        final StringBuilder big = new StringBuilder();
+        for(int i = 0; i< 500; i++) {
+            big.append('x');
+        }
+        // an entry heavier than 10% of the memory budget and a record bigger than a bucket go down to the last level
+        cache.put("big", big.toString());
+        assertEquals(big.toString(), l3.get("big"));
+
+        // full buckets of the mapped file evict their oldest records instead of failing
+        for(int i = 0; i< AMOUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals("value0", l3.get("key0"));
+        for(int i = 0; i< AMOUNT; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+
+        final File dir = new File(CACHE_DIR, "fileWeighed");
+        final Cache files = new FileCache(dir, 4, 8 * 1024, 0.5, new BinarySerializer(), l3);
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            files.put("file_key" + i, "value" + i);
+        }
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            assertEquals("value" + i, files.get("file_key" + i));
+        }
+        assertTrue(size(dir) <= 8 * 1024);
+    }
+
+    @Test
+    public void layersExpiryTest() throws IOException, InterruptedException {
+        final File packDir = new File(CACHE_DIR, "packExpiry");
+        final CacheLayer[] layers = {
+                new FileCache(new File(CACHE_DIR, "fileExpiry"), 4, new DummyCache()),
+                new PackFileCache(packDir, 4, new DummyCache()),
+                new OffHeapMemCache(1024 * 1024, 4096, 1, new BinarySerializer(), new DummyCache()),
+                new LongKeyCache(100, 1, new DummyCache())};
+        final Cache[] uppers = new Cache[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            final CacheLayer layer = layers[i];
+            layer.put(1L, "ttl", 100, TimeUnit.MILLISECONDS);
+            layer.put(2L, "forever");
+            layer.put(3L, "long", 1, TimeUnit.DAYS);
+            assertEquals("ttl", layer.get(1L));
+            // a value promoted into a memory layer keeps its expiration time
+            uppers[i] = new ConcurrentMemCacheMRU(10, 1, layer);
+            assertEquals("ttl", uppers[i].get(1L));
+        }
+        // an entry spilled with its remaining TTL expires in a file layer too
+        final Cache chain = new ConcurrentMemCacheMRU(1, 1, layers[0]);
+        chain.put(10L, "spilled", 100, TimeUnit.MILLISECONDS);
+        chain.put(11L, "other");
+        assertEquals("spilled", layers[0].get_(10L));
+        Thread.sleep(150);
+        for (CacheLayer layer : layers) {
+            assertNull(layer.get(1L));
+            assertEquals("forever", layer.get(2L));
+            assertEquals("long", layer.get(3L));
+        }
+        for (Cache upper : uppers) {
+            assertNull(upper.get(1L));
+        }
+        assertNull(chain.get(10L));
+        ((Closeable) layers[1]).close();
+        final PackFileCache reopened = new PackFileCache(packDir, 4, new DummyCache());
+        assertNull(reopened.get(1L));
+        assertEquals("long", reopened.get(3L));
+        reopened.close();
+        ((Closeable) layers[0]).close();
+    }
+
+    @Test
+    public void expiryTest() throws IOException, InterruptedException {
+        final File dir = new File(CACHE_DIR, "mmExpiry");
+        final MMFileCache l2 = new MMFileCache(dir, 4, 64 * 1024, new DummyCache());
+        final Cache cache = new ConcurrentMemCacheMRU(2, Weigher.SINGLETON, 1,
+                Expiry.of(400, 200, TimeUnit.MILLISECONDS), 1, l2);
+
+        cache.put("ttl", "value", 100, TimeUnit.MILLISECONDS);
+        cache.put("idle", "value");
+        cache.put("spilled", "value", 100, TimeUnit.MILLISECONDS);
+        cache.put("forever", "value", 1, TimeUnit.DAYS);
+        // "ttl" and "idle" are evicted with their remaining TTL, mapped file keeps it in the record header
+        assertEquals("value", l2.get("ttl"));
+        assertEquals("value", cache.get("spilled"));
+        Thread.sleep(150);
+        assertNull(cache.get("spilled"));
+        assertNull(cache.get("ttl"));
+        assertEquals("value", cache.get("forever"));
+        assertNull(new MMFileCache(dir, 4, 64 * 1024, new DummyCache()).get("ttl"));
+
+        // time-to-idle is prolonged by reads but not beyond the time-to-live
+        cache.put("idle", "value");
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(100);
+            assertEquals("value", cache.get("idle"));
+        }
+        Thread.sleep(150);
+        assertNull(cache.get("idle"));
+
+        // the timer wheel expires exactly the entries whose time has come
+        final long now = System.currentTimeMillis();
+        final AtomicInteger expired = new AtomicInteger();
+        final TimerWheel wheel = new TimerWheel(now, e -> expired.incrementAndGet());
+        for (int i = 0; i < 1000; i++) {
+            final LinkedEntry e = new LinkedEntry("key" + i, "value" + i);
+            e.expireAt = now + 1 + i * 1000L;
+            wheel.schedule(e);
+        }
+        wheel.advance(now + 500000);
+        assertEquals(500, expired.get());
+        wheel.advance(now + 2000000);
+        assertEquals(1000, expired.get());
+        assertEquals(0, wheel.size());
+    }
+
+    private static long size(File f) {
+        long size = f.length();
+        final File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                size += c.isDirectory() ? size(c) : c.length();
+        }
+        return f.isDirectory() ? size - f.length() : size;
+    }
+
+    @Test
+    public void asyncCacheTest() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        final CompletableFuture<String> slow = new CompletableFuture<>();
+        final AsyncValueComputer computer = new AsyncValueComputer(o -> {
+            computations.incrementAndGet();
+            return o.equals("slow") ? slow : CompletableFuture.completedFuture(o + "_value");
+        });
+        final AtomicInteger diskTasks = new AtomicInteger();
+        final ExecutorService disk = Executors.newFixedThreadPool(2);
+        final FileCache l2 = new FileCache(new File(CACHE_DIR, "async"), 10, computer);
+        l2.setAsyncExecutor(task -> {
+            diskTasks.incrementAndGet();
+            disk.execute(task);
+        });
+        final ConcurrentMemCacheMRU cache = new ConcurrentMemCacheMRU(10, 1, l2);
+
+        // a miss goes through the disk executor and the found value is promoted into the memory layer
+        assertEquals("a_value", cache.getAsync("a").get(10, TimeUnit.SECONDS));
+        assertTrue(diskTasks.get() > 0);
+        final CompletableFuture<Object> hit = cache.getAsync("a");
+        assertTrue(hit.isDone());
+        assertEquals("a_value", hit.get());
+
+        // concurrent misses share one computation which occupies no thread
+        final CompletableFuture<Object> f1 = cache.getAsync("slow");
+        final CompletableFuture<Object> f2 = cache.getAsync("slow");
+        Thread.sleep(200);
+        assertFalse(f1.isDone());
+        slow.complete("slow_value");
+        assertEquals("slow_value", f1.get(10, TimeUnit.SECONDS));
+        assertEquals("slow_value", f2.get(10, TimeUnit.SECONDS));
+        assertEquals(2, computations.get());
+
+        // evicted entries are spilled to the disk layer
+        for (int i = 0; i < 20; i++)
+            cache.putAsync("key" + i, "value" + i).get(10, TimeUnit.SECONDS);
+        assertEquals("value0", l2.getAsync("key0").get(10, TimeUnit.SECONDS));
+        assertEquals(2, computations.get());
+        disk.shutdown();
+    }
+
     @Test
     public void valueComputingCacheTest() {
         final Cache cache = new ValueComputer(o -> o.toString() + "_value");
@@ -116,6 +1126,226 @@ public class CacheTest {
 
 
 
+    @Test
+    public void refreshAheadTest() throws InterruptedException {
+        final AtomicInteger computations = new AtomicInteger();
+        final ValueComputer computer = new ValueComputer(o -> o + "_" + computations.incrementAndGet());
+        final ConcurrentMemCacheMRU cache = new ConcurrentMemCacheMRU(100, computer);
+        cache.setRefreshAhead(new RefreshAhead(200, TimeUnit.MILLISECONDS, computer::get));
+
+        assertEquals("key_1", cache.get("key"));
+        Thread.sleep(300);
+        // stale value is served while a single reload runs in background
+        for (int i = 0; i < 100; i++) {
+            final Object val = cache.get("key");
+            assertTrue("key_1".equals(val) || "key_2".equals(val));
+        }
+        for (int i = 0; i < 100 && !"key_2".equals(cache.get("key")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("key_2", cache.get("key"));
+        assertEquals(2, computations.get());
+
+        // a refreshed value keeps an explicit TTL
+        cache.put("ttl", "short", 400, TimeUnit.MILLISECONDS);
+        Thread.sleep(250);
+        assertEquals("short", cache.get("ttl"));
+        for (int i = 0; i < 100 && "short".equals(cache.get_("ttl")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("ttl_3", cache.get_("ttl"));
+        Thread.sleep(200);
+        assertNull(cache.get_("ttl"));
+    }
+
+    @Test
+    public void warmUpTest() throws Exception {
+        final Cache l2 = new ConcurrentMemCacheMRU(10 * AMOUNT, new DummyCache());
+        final ConcurrentMemCacheMFU cache = new ConcurrentMemCacheMFU(AMOUNT / 10, 1, l2);
+        // the next level has all values, the hot set is read through the memory layer
+        for(int i = 0; i< AMOUNT; i++) {
+            l2.put("key" + i, "value" + i);
+        }
+        for (int n = 0; n < 3; n++) {
+            for(int i = 0; i< AMOUNT / 20; i++) {
+                cache.get("key" + i);
+            }
+        }
+        final File snapshot = new File(CACHE_DIR, "hot.snapshot");
+        snapshot.getParentFile().mkdirs();
+        cache.saveSnapshot(snapshot);
+
+        // a restarted memory layer gets the hot set from the next level, reads of it do not go below
+        final AtomicInteger below = new AtomicInteger();
+        final Cache counting = new Cache() {
+            @Override
+            public Object get(Object key) {
+                below.incrementAndGet();
+                return l2.get(key);
+            }
+
+            @Override
+            public void put(Object key, Object value) {
+                l2.put(key, value);
+            }
+        };
+        final ConcurrentMemCacheMFU restarted = new ConcurrentMemCacheMFU(AMOUNT / 10, 1, counting);
+        restarted.put("key0", "new value");
+        final int warmed = restarted.warmUp(snapshot, new BinarySerializer(), 50, 2, 100000).get(10, TimeUnit.SECONDS);
+        assertTrue(warmed >= AMOUNT / 20);
+        below.set(0);
+        assertEquals("new value", restarted.get("key0"));
+        for(int i = 1; i< AMOUNT / 20; i++) {
+            assertEquals("value" + i, restarted.get("key" + i));
+        }
+        assertEquals(0, below.get());
+
+        // a damaged snapshot is read as an empty one
+        final byte[] good = Files.readAllBytes(snapshot.toPath());
+        final ByteBuffer hugeCount = ByteBuffer.wrap(good.clone()).putInt(4, Integer.MAX_VALUE);
+        final ByteBuffer negativeLength = ByteBuffer.wrap(good.clone()).putInt(8, -1);
+        final ByteBuffer hugeLength = ByteBuffer.wrap(good.clone()).putInt(8, Integer.MAX_VALUE);
+        final byte[] truncated = Arrays.copyOf(good, good.length - 3);
+        for (byte[] damaged : new byte[][]{hugeCount.array(), negativeLength.array(), hugeLength.array(), truncated}) {
+            Files.write(snapshot.toPath(), damaged);
+            assertTrue(HotSetSnapshot.read(snapshot).keys.isEmpty());
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        final ConcurrentMemCacheMRU l2 = new ConcurrentMemCacheMRU(1000, new DummyCache());
+        final ConcurrentMemCacheMRU cache = new ConcurrentMemCacheMRU(10, 1, l2);
+        for(int i = 0; i< 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals("value0", cache.get("key0"));
+        assertEquals("value19", cache.get("key19"));
+
+        final CacheStats stats = cache.metrics().snapshot();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        // 20 puts and a promotion of "key0"
+        assertEquals(21, stats.puts());
+        assertEquals(11, stats.evictions());
+        assertEquals(11, stats.spills());
+        assertEquals(2, stats.getLatency().count());
+        assertEquals(1, l2.metrics().snapshot().hits());
+
+        // latencies may be turned off, counters are kept
+        cache.metrics().setLatencyRecording(false);
+        assertEquals("value19", cache.get("key19"));
+        assertEquals(2, cache.metrics().snapshot().hits());
+        assertEquals(2, cache.metrics().snapshot().getLatency().count());
+        cache.metrics().setLatencyRecording(true);
+
+        // computers count computed values as hits and keys without a value as misses
+        final ValueComputer computer = new ValueComputer(o -> o.toString().startsWith("known") ? "value" : null);
+        final AsyncValueComputer asyncComputer = new AsyncValueComputer(
+                o -> CompletableFuture.completedFuture(o.toString().startsWith("known") ? "value" : null));
+        for (Cache c : Arrays.<Cache>asList(computer, asyncComputer)) {
+            assertEquals("value", c.get("known"));
+            assertNull(c.get("unknown"));
+            assertEquals(1, c.getAll(Arrays.asList("known1", "unknown1")).size());
+        }
+        for (CacheStats s : Arrays.asList(computer.metrics().snapshot(), asyncComputer.metrics().snapshot())) {
+            assertEquals(2, s.hits());
+            assertEquals(2, s.misses());
+            assertTrue(s.getLatency().count() > 0);
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        final LatencyHistogram.Snapshot latency = histogram.snapshot();
+        assertEquals(1000, latency.count());
+        assertEquals(1000000, latency.max());
+        assertTrue(Math.abs(latency.percentile(0.5) - 500000) <= 500000 / 8);
+        assertTrue(Math.abs(latency.percentile(0.99) - 990000) <= 990000 / 8);
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = cache.metrics().register("metricsTest");
+        try {
+            assertEquals(2L, server.getAttribute(name, "Hits"));
+            assertEquals(true, server.getAttribute(name, "LatencyRecording"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void concurrentMissesTest() throws InterruptedException {
+        final AtomicInteger computations = new AtomicInteger();
+        final Cache cache = new ConcurrentMemCacheMRU(100, new ValueComputer(o -> {
+            computations.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if ("fail".equals(o))
+                throw new IllegalStateException("failed");
+            return o + "_value";
+        }));
+
+        final AtomicInteger values = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[16];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                if ("key_value".equals(cache.get("key")))
+                    values.incrementAndGet();
+                try {
+                    cache.get("fail");
+                } catch (IllegalStateException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(2, computations.get());
+        assertEquals(threads.length, values.get());
+        assertEquals(threads.length, failures.get());
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        final AtomicInteger bulkCalls = new AtomicInteger();
+        final Cache cache = new ConcurrentMemCacheMRU(100, new FileCache(new File(CACHE_DIR), 100,
+                new MMFileCache(new File(CACHE_DIR, "mmBatchCache"), 16, 64 * 1024, new ValueComputer(
+                        o -> o + "_value",
+                        keys -> {
+                            bulkCalls.incrementAndGet();
+                            final Map<Object, Object> values = new HashMap<>();
+                            for (Object k : keys) {
+                                if (!k.toString().startsWith("absent"))
+                                    values.put(k, k + "_value");
+                            }
+                            return values;
+                        }))));
+
+        final Map<Object, Object> entries = new HashMap<>();
+        for(int i = 0; i< AMOUNT / 10; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        cache.putAll(entries);
+
+        final List<Object> keys = new ArrayList<>(entries.keySet());
+        keys.add("computed");
+        keys.add("absent");
+        final Map<Object, Object> found = cache.getAll(keys);
+        assertEquals(entries.size() + 1, found.size());
+        for (Map.Entry<Object, Object> e : entries.entrySet()) {
+            assertEquals(e.getValue(), found.get(e.getKey()));
+        }
+        assertEquals("computed_value", found.get("computed"));
+        assertEquals(1, bulkCalls.get());
+    }
+
     @Test
     public void complexTest3() {
         final Cache cache = new MemCacheMRU(100, new FileCache(new File("./cache"), 1000,